@@ -0,0 +1,160 @@
+package com.jme3.recast4j.Detour.TileCache;
+
+import java.util.Arrays;
+
+import org.recast4j.detour.tilecache.TileCacheCompressor;
+
+/**
+ * A byte oriented LZ77 compressor in the style of the LZ4 block format, for
+ * the layers of a tile cache.
+ * <p>
+ * A layer is a few kilobytes of heights, areas and connections with long runs
+ * of equal values, so a single pass with a small hash table of the last
+ * positions of each 4 byte sequence finds most of the matches, and the
+ * decoder is a loop of array copies. The stream is a list of sequences:
+ *
+ * <pre>
+ * token        literal length (high 4 bits), match length - 4 (low 4 bits)
+ * [255...]     more literal length bytes when the high bits are 15
+ * literals
+ * offset       2 bytes, little endian (absent after the last literals)
+ * [255...]     more match length bytes when the low bits are 15
+ * </pre>
+ *
+ * An instance keeps its hash table between calls and is not thread-safe; use
+ * one per thread.
+ *
+ * @author capdevon
+ */
+public class LzTileCacheCompressor implements TileCacheCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    // After 2^SKIP_TRIGGER misses in a row the search starts skipping bytes,
+    // so incompressible data is scanned quickly.
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    @Override
+    public byte[] compress(byte[] buf) {
+        int n = buf.length;
+        byte[] dst = new byte[n + n / 255 + 16];
+        Arrays.fill(table, -1);
+
+        int ip = 0;
+        int anchor = 0;
+        int op = 0;
+        int misses = 0;
+        while (ip + MIN_MATCH <= n) {
+            int seq = readInt(buf, ip);
+            int h = (seq * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(buf, ref) != seq) {
+                ip += 1 + (misses++ >> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+
+            int len = MIN_MATCH;
+            while (ip + len < n && buf[ref + len] == buf[ip + len]) {
+                len++;
+            }
+
+            op = writeSequence(dst, op, buf, anchor, ip - anchor, ip - ref, len);
+            ip += len;
+            anchor = ip;
+        }
+
+        // Last literals, without a match.
+        op = writeSequence(dst, op, buf, anchor, n - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    @Override
+    public byte[] decompress(byte[] buf, int offset, int len, int outputlen) {
+        byte[] dst = new byte[outputlen];
+        int ip = offset;
+        int op = 0;
+        while (true) {
+            int token = buf[ip++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = buf[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(buf, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (op >= outputlen) {
+                break;
+            }
+
+            int distance = (buf[ip++] & 0xFF) | (buf[ip++] & 0xFF) << 8;
+            int length = token & 15;
+            if (length == 15) {
+                int b;
+                do {
+                    b = buf[ip++] & 0xFF;
+                    length += b;
+                } while (b == 255);
+            }
+            length += MIN_MATCH;
+
+            int ref = op - distance;
+            if (distance >= length) {
+                System.arraycopy(dst, ref, dst, op, length);
+                op += length;
+            } else {
+                // Overlapping copy, a run.
+                for (int i = 0; i < length; i++) {
+                    dst[op++] = dst[ref + i];
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literals, int distance, int length) {
+        int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        if (literals >= 15) {
+            op = writeLength(dst, op, literals - 15);
+        }
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+
+        if (length > 0) {
+            dst[op++] = (byte) distance;
+            dst[op++] = (byte) (distance >>> 8);
+            int matchLength = length - MIN_MATCH;
+            token |= Math.min(matchLength, 15);
+            if (matchLength >= 15) {
+                op = writeLength(dst, op, matchLength - 15);
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16 | (buf[i + 3] & 0xFF) << 24;
+    }
+
+}
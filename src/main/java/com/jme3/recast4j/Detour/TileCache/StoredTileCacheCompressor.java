@@ -0,0 +1,26 @@
+package com.jme3.recast4j.Detour.TileCache;
+
+import java.util.Arrays;
+
+import org.recast4j.detour.tilecache.TileCacheCompressor;
+
+/**
+ * Stores the layers uncompressed, for servers with memory to spare where the
+ * obstacle rebuild latency matters more than the size of the tile cache.
+ *
+ * @author capdevon
+ */
+public class StoredTileCacheCompressor implements TileCacheCompressor {
+
+    @Override
+    public byte[] decompress(byte[] buf, int offset, int len, int outputlen) {
+        return Arrays.copyOfRange(buf, offset, offset + outputlen);
+    }
+
+    @Override
+    public byte[] compress(byte[] buf) {
+        // The caller may reuse the buffer.
+        return Arrays.copyOf(buf, buf.length);
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.jme3.recast4j.Detour.TileCache;
+
+import java.util.function.Supplier;
+
+import org.recast4j.detour.tilecache.TileCacheCompressor;
+import org.recast4j.detour.tilecache.io.compress.TileCacheCompressorFactory;
+
+/**
+ * The compressors available for the layers of a tile cache. Any other
+ * {@code Supplier<TileCacheCompressor>} can be plugged in the same places:
+ * JmeTileLayerBuilder and the TileCache constructor.
+ * <p>
+ * The layers must be decompressed with the compressor used to build them.
+ * TileCacheReader always uses the compressor of TileCacheCompressorFactory, so
+ * only a tile cache built with {@link #isReadable(boolean)} compression can be
+ * saved and read back.
+ *
+ * @author capdevon
+ */
+public enum TileCacheCompression implements Supplier<TileCacheCompressor> {
+
+    /**
+     * The Java compressor of TileCacheCompressorFactory.
+     */
+    DEFAULT {
+        @Override
+        public TileCacheCompressor get() {
+            return TileCacheCompressorFactory.get(false);
+        }
+    },
+
+    /**
+     * FastLZ, the format of the C++ Detour library.
+     */
+    C_COMPATIBLE {
+        @Override
+        public TileCacheCompressor get() {
+            return TileCacheCompressorFactory.get(true);
+        }
+    },
+
+    /**
+     * A byte oriented LZ with no external dependency, tuned for the small and
+     * repetitive layer grids. See {@link LzTileCacheCompressor}.
+     */
+    FAST_LZ {
+        @Override
+        public TileCacheCompressor get() {
+            return new LzTileCacheCompressor();
+        }
+    },
+
+    /**
+     * No compression: the layers are stored as is. Rebuilds skip the
+     * decompression at the cost of about 3 bytes per cell of every layer.
+     */
+    STORE {
+        @Override
+        public TileCacheCompressor get() {
+            return new StoredTileCacheCompressor();
+        }
+    };
+
+    /**
+     * @param cCompatibility
+     * @return True if TileCacheReader reads back a tile cache built with this
+     *         compression.
+     */
+    public boolean isReadable(boolean cCompatibility) {
+        return this == (cCompatibility ? C_COMPATIBLE : DEFAULT);
+    }
+}
@@ -0,0 +1,583 @@
+package com.jme3.recast4j.Detour.TileCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.recast4j.detour.MeshData;
+import org.recast4j.detour.MeshTile;
+import org.recast4j.detour.NavMesh;
+import org.recast4j.detour.NavMeshParams;
+import org.recast4j.detour.Poly;
+import org.recast4j.detour.tilecache.TileCache;
+
+import com.jme3.app.Application;
+import com.jme3.app.state.BaseAppState;
+import com.jme3.math.Vector3f;
+import com.jme3.recast4j.Detour.VersionedNavMesh;
+import com.jme3.util.SafeArrayList;
+
+/**
+ * Feeds dynamic obstacles (crates, doors, vehicles...) to a TileCache without
+ * blocking the render thread.
+ * <p>
+ * The add, move and remove requests can be sent from any thread: they go to a
+ * lock-free queue and return right away. A dedicated worker thread owns the
+ * TileCache. Every frame it applies the pending requests, keeping only the
+ * last one of each obstacle, and rebuilds the affected tiles until the time
+ * budget is spent. The rebuilt tiles are published to the VersionedNavMesh
+ * returned by {@link #getNavMesh()}, all the layers of a tile in the same
+ * version, so a reader on any thread never sees a half updated tile. The
+ * listeners are notified on the render thread.
+ * <p>
+ * The flags of some polygons, a door for example, are changed with
+ * {@link #setPolyFlags(Vector3f, float, int, int)}. They are applied to copies
+ * of the tiles and applied again to every rebuild of these tiles.
+ * <p>
+ * The TileCache and its own NavMesh must not be used by anyone else once the
+ * state is attached. The published NavMesh shares the MeshData of the tiles
+ * with the NavMesh of the TileCache, except for the tiles with changed flags.
+ *
+ * <pre>
+ * TileCacheObstacleState obstacles = new TileCacheObstacleState(tc);
+ * stateManager.attach(obstacles);
+ * long crate = obstacles.addObstacle(position, 0.5f, 1f);
+ * obstacles.moveObstacle(crate, newPosition);
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class TileCacheObstacleState extends BaseAppState {
+
+    private static final Logger LOG = Logger.getLogger(TileCacheObstacleState.class.getName());
+
+    /**
+     * Receives the tiles published to the NavMesh, on the render thread.
+     */
+    public interface TileListener {
+        /**
+         * @param version The version of the NavMesh including the tiles.
+         * @param tiles   The {tx, ty} coordinates of the changed tiles.
+         */
+        void onTilesChanged(long version, List<int[]> tiles);
+    }
+
+    private static final int ADD = 0;
+    private static final int MOVE = 1;
+    private static final int REMOVE = 2;
+
+    private static class ObstacleRequest {
+        final long id;
+        final int action;
+        final boolean box;
+        // Cylinder: center of the base, radius, height.
+        // Box: min and max corners.
+        final float[] a;
+        final float[] b;
+
+        ObstacleRequest(long id, int action, boolean box, float[] a, float[] b) {
+            this.id = id;
+            this.action = action;
+            this.box = box;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    /**
+     * Flags set on the polygons having any of the included flags and whose
+     * center is within the radius.
+     */
+    private static class FlagsOverride {
+        final float[] center;
+        final float radius;
+        final int includeFlags;
+        final int flags;
+
+        FlagsOverride(float[] center, float radius, int includeFlags, int flags) {
+            this.center = center;
+            this.radius = radius;
+            this.includeFlags = includeFlags;
+            this.flags = flags;
+        }
+
+        boolean sameArea(FlagsOverride other) {
+            return Arrays.equals(center, other.center) && radius == other.radius;
+        }
+
+        boolean contains(MeshData data, Poly poly) {
+            float x = 0, y = 0, z = 0;
+            for (int i = 0; i < poly.vertCount; i++) {
+                int v = poly.verts[i] * 3;
+                x += data.verts[v];
+                y += data.verts[v + 1];
+                z += data.verts[v + 2];
+            }
+            x = x / poly.vertCount - center[0];
+            y = y / poly.vertCount - center[1];
+            z = z / poly.vertCount - center[2];
+            return x * x + y * y + z * z <= radius * radius;
+        }
+    }
+
+    /**
+     * The tiles of a published version.
+     */
+    private static class TileBatch {
+        final long version;
+        final List<int[]> tiles;
+
+        TileBatch(long version, List<int[]> tiles) {
+            this.version = version;
+            this.tiles = tiles;
+        }
+    }
+
+    private final TileCache tileCache;
+    private final VersionedNavMesh navMesh;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentLinkedQueue<ObstacleRequest> requests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<FlagsOverride> flagRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<TileBatch> published = new ConcurrentLinkedQueue<>();
+    private final SafeArrayList<TileListener> listeners = new SafeArrayList<>(TileListener.class);
+
+    // Worker thread only.
+    private final Map<Long, ObstacleRequest> obstacles = new HashMap<>();
+    private final Map<Long, Long> obstacleRefs = new HashMap<>();
+    // Tiles touched by the obstacles since the TileCache was last up to date.
+    private final Set<Long> dirtyTiles = new LinkedHashSet<>();
+    // The layers of each tile of the TileCache as last handed to the render
+    // thread, before the flags overrides.
+    private final Map<Long, MeshData[]> publishedTiles = new HashMap<>();
+    // The flags overrides, in the order they apply.
+    private final List<FlagsOverride> overrides = new ArrayList<>();
+    // Tiles touched by the flags overrides since the last publish.
+    private final Set<Long> flaggedTiles = new LinkedHashSet<>();
+
+    private Thread worker;
+    private volatile boolean running;
+    private volatile long budgetNanos = TimeUnit.MILLISECONDS.toNanos(4);
+
+    /**
+     *
+     * @param tileCache The TileCache with its tiles already added and built.
+     */
+    public TileCacheObstacleState(TileCache tileCache) {
+        this.tileCache = tileCache;
+
+        NavMesh source = tileCache.getNavMesh();
+        NavMesh copy = new NavMesh(source.getParams(), source.getMaxVertsPerPoly());
+        Map<Long, List<MeshData>> tiles = new HashMap<>();
+        for (int i = 0; i < source.getMaxTiles(); i++) {
+            MeshTile tile = source.getTile(i);
+            if (tile != null && tile.data != null) {
+                copy.addTile(tile.data, 0, source.getTileRef(tile));
+                tiles.computeIfAbsent(key(tile.data.header.x, tile.data.header.y), k -> new ArrayList<>()).add(tile.data);
+            }
+        }
+        tiles.forEach((key, layers) -> publishedTiles.put(key, layers.toArray(new MeshData[0])));
+        this.navMesh = new VersionedNavMesh(copy);
+    }
+
+    @Override
+    protected void initialize(Application app) {
+        running = true;
+        worker = new Thread(this::run, "TileCacheObstacles");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            // Let a publish in progress finish, the TileCache is then free.
+            worker.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    protected void onEnable() {}
+
+    @Override
+    protected void onDisable() {}
+
+    /**
+     * Wakes the worker and notifies the tiles it published since the previous
+     * frame.
+     */
+    @Override
+    public void update(float tpf) {
+        LockSupport.unpark(worker);
+
+        TileBatch batch;
+        while ((batch = published.poll()) != null) {
+            for (TileListener listener : listeners.getArray()) {
+                listener.onTilesChanged(batch.version, batch.tiles);
+            }
+        }
+    }
+
+    /**
+     * @return The NavMesh including the obstacles, safe to query from any
+     *         thread.
+     */
+    public VersionedNavMesh getNavMesh() {
+        return navMesh;
+    }
+
+    public void addListener(TileListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TileListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Maximum time the worker spends rebuilding tiles per frame. Default: 4 ms
+     */
+    public void setBudget(float millis) {
+        this.budgetNanos = (long) (millis * 1e6f);
+    }
+
+    public float getBudget() {
+        return budgetNanos / 1e6f;
+    }
+
+    /**
+     * Adds a cylinder obstacle. Thread-safe.
+     *
+     * @param pos    The center of the base.
+     * @param radius
+     * @param height
+     * @return The id of the obstacle.
+     */
+    public long addObstacle(Vector3f pos, float radius, float height) {
+        long id = nextId.getAndIncrement();
+        requests.add(new ObstacleRequest(id, ADD, false, pos.toArray(null), new float[] { radius, height }));
+        return id;
+    }
+
+    /**
+     * Adds an axis aligned box obstacle. Thread-safe.
+     *
+     * @param min
+     * @param max
+     * @return The id of the obstacle.
+     */
+    public long addBoxObstacle(Vector3f min, Vector3f max) {
+        long id = nextId.getAndIncrement();
+        requests.add(new ObstacleRequest(id, ADD, true, min.toArray(null), max.toArray(null)));
+        return id;
+    }
+
+    /**
+     * Moves an obstacle, keeping its size. Thread-safe.
+     *
+     * @param id  The id of the obstacle.
+     * @param pos The new center of the base (cylinder) or min corner (box).
+     */
+    public void moveObstacle(long id, Vector3f pos) {
+        requests.add(new ObstacleRequest(id, MOVE, false, pos.toArray(null), null));
+    }
+
+    /**
+     * Removes an obstacle. Thread-safe.
+     *
+     * @param id The id of the obstacle.
+     */
+    public void removeObstacle(long id) {
+        requests.add(new ObstacleRequest(id, REMOVE, false, null, null));
+    }
+
+    /**
+     * Sets the flags of the polygons having any of the included flags and
+     * whose center is within the radius of a point, a door for example. The
+     * flags are published with the next version and kept when the obstacles
+     * rebuild these tiles. A later call for the same point and radius replaces
+     * them. Thread-safe.
+     *
+     * @param center
+     * @param radius
+     * @param includeFlags The polygons must have at least one of these flags
+     *                     in the TileCache.
+     * @param flags        The new flags.
+     */
+    public void setPolyFlags(Vector3f center, float radius, int includeFlags, int flags) {
+        flagRequests.add(new FlagsOverride(center.toArray(null), radius, includeFlags, flags));
+    }
+
+    private void run() {
+        while (running) {
+            // Woken up once per frame by update().
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            if (!running) {
+                break;
+            }
+            if (!isEnabled()) {
+                continue;
+            }
+            try {
+                long deadline = System.nanoTime() + budgetNanos;
+                applyRequests();
+                applyFlagRequests();
+                boolean upToDate = tileCache.update();
+                while (!upToDate && System.nanoTime() < deadline) {
+                    upToDate = tileCache.update();
+                }
+                publish(upToDate);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Obstacle update failed", e);
+            }
+        }
+    }
+
+    /**
+     * Applies the queued requests to the TileCache, keeping only the final
+     * state of each obstacle.
+     */
+    private void applyRequests() {
+        Map<Long, ObstacleRequest> changed = new LinkedHashMap<>();
+        ObstacleRequest req;
+        while ((req = requests.poll()) != null) {
+            ObstacleRequest current = changed.containsKey(req.id) ? changed.get(req.id) : obstacles.get(req.id);
+            if (req.action == MOVE) {
+                if (current == null || current.action == REMOVE) {
+                    continue;
+                }
+                req = move(current, req.a);
+            }
+            changed.put(req.id, req);
+        }
+
+        for (ObstacleRequest next : changed.values()) {
+            ObstacleRequest previous = obstacles.remove(next.id);
+            Long ref = obstacleRefs.remove(next.id);
+            if (ref != null) {
+                tileCache.removeObstacle(ref);
+                markDirty(previous);
+            }
+            if (next.action != REMOVE) {
+                try {
+                    long obstacleRef = next.box
+                            ? tileCache.addBoxObstacle(next.a, next.b)
+                            : tileCache.addObstacle(next.a, next.b[0], next.b[1]);
+                    obstacles.put(next.id, next);
+                    obstacleRefs.put(next.id, obstacleRef);
+                    markDirty(next);
+                } catch (RuntimeException e) {
+                    // Out of obstacles: drop this one, keep the others.
+                    LOG.log(Level.WARNING, "Cannot add obstacle " + next.id, e);
+                }
+            }
+        }
+    }
+
+    private void applyFlagRequests() {
+        FlagsOverride req;
+        while ((req = flagRequests.poll()) != null) {
+            FlagsOverride next = req;
+            overrides.removeIf(o -> o.sameArea(next));
+            overrides.add(next);
+            float r = next.radius;
+            addTiles(flaggedTiles, next.center[0] - r, next.center[2] - r, next.center[0] + r, next.center[2] + r);
+        }
+    }
+
+    private static ObstacleRequest move(ObstacleRequest obstacle, float[] pos) {
+        float[] b = obstacle.b;
+        if (obstacle.box) {
+            // Keep the size of the box.
+            b = new float[3];
+            for (int i = 0; i < 3; i++) {
+                b[i] = pos[i] + obstacle.b[i] - obstacle.a[i];
+            }
+        }
+        return new ObstacleRequest(obstacle.id, ADD, obstacle.box, pos, b);
+    }
+
+    /**
+     * Records the tiles touched by the obstacle, expanded by the agent radius.
+     */
+    private void markDirty(ObstacleRequest obstacle) {
+        float[] bmin = new float[3];
+        float[] bmax = new float[3];
+        if (obstacle.box) {
+            System.arraycopy(obstacle.a, 0, bmin, 0, 3);
+            System.arraycopy(obstacle.b, 0, bmax, 0, 3);
+        } else {
+            float r = obstacle.b[0];
+            bmin[0] = obstacle.a[0] - r;
+            bmin[2] = obstacle.a[2] - r;
+            bmax[0] = obstacle.a[0] + r;
+            bmax[2] = obstacle.a[2] + r;
+        }
+
+        float margin = tileCache.getParams().walkableRadius;
+        addTiles(dirtyTiles, bmin[0] - margin, bmin[2] - margin, bmax[0] + margin, bmax[2] + margin);
+    }
+
+    /**
+     * Adds the keys of the tiles overlapping a rectangle of the xz plane.
+     */
+    private void addTiles(Set<Long> keys, float minX, float minZ, float maxX, float maxZ) {
+        NavMeshParams params = navMesh.getParams();
+        int tx0 = (int) Math.floor((minX - params.orig[0]) / params.tileWidth);
+        int ty0 = (int) Math.floor((minZ - params.orig[2]) / params.tileHeight);
+        int tx1 = (int) Math.floor((maxX - params.orig[0]) / params.tileWidth);
+        int ty1 = (int) Math.floor((maxZ - params.orig[2]) / params.tileHeight);
+        for (int tx = tx0; tx <= tx1; tx++) {
+            for (int ty = ty0; ty <= ty1; ty++) {
+                keys.add(key(tx, ty));
+            }
+        }
+    }
+
+    /**
+     * Publishes the tiles rebuilt during this frame as a new version. A dirty
+     * tile is published once all its layers have been rebuilt, so a long queue
+     * of rebuilds does not hold back the finished tiles, but a tile cut by the
+     * time budget is never published with a mix of old and new layers. A
+     * rebuild always replaces the MeshData of a layer, so a layer still shared
+     * with the published ones is pending. Layers the obstacles don't touch
+     * are never rebuilt: their tiles wait until the TileCache is up to date.
+     * <p>
+     * The tiles whose flags overrides changed are published right away,
+     * unless they are being rebuilt: the overrides are then applied when the
+     * rebuild is published.
+     */
+    private void publish(boolean upToDate) {
+        NavMesh source = tileCache.getNavMesh();
+        List<int[]> tiles = new ArrayList<>();
+        List<MeshData[]> batch = new ArrayList<>();
+        Set<Long> keys = dirtyTiles;
+        if (!flaggedTiles.isEmpty()) {
+            keys = new LinkedHashSet<>(dirtyTiles);
+            keys.addAll(flaggedTiles);
+        }
+        for (long key : keys) {
+            int tx = (int) (key >> 32);
+            int ty = (int) key;
+            List<MeshData> layers = new ArrayList<>();
+            for (MeshTile tile : source.getTilesAt(tx, ty)) {
+                if (tile.data != null) {
+                    layers.add(tile.data);
+                }
+            }
+            MeshData[] current = layers.toArray(new MeshData[0]);
+            MeshData[] previous = publishedTiles.get(key);
+            boolean rebuilt = upToDate ? !sameLayers(current, previous) : allRebuilt(current, previous);
+            boolean flagged = current.length > 0 && flaggedTiles.contains(key) && sameLayers(current, previous);
+            if (rebuilt || flagged) {
+                publishedTiles.put(key, current);
+                tiles.add(new int[] { tx, ty });
+                batch.add(applyOverrides(current));
+            }
+        }
+        if (upToDate) {
+            dirtyTiles.clear();
+        }
+        flaggedTiles.clear();
+        if (!tiles.isEmpty()) {
+            long version = navMesh.publish(nm -> {
+                for (int i = 0; i < tiles.size(); i++) {
+                    VersionedNavMesh.replaceTiles(nm, tiles.get(i)[0], tiles.get(i)[1], batch.get(i));
+                }
+            });
+            published.add(new TileBatch(version, tiles));
+        }
+    }
+
+    /**
+     * Returns the layers with the flags overrides applied. A layer whose
+     * flags change is copied, the TileCache and the published versions keep
+     * their own MeshData.
+     */
+    private MeshData[] applyOverrides(MeshData[] layers) {
+        if (overrides.isEmpty()) {
+            return layers;
+        }
+        MeshData[] result = new MeshData[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            result[i] = applyOverrides(layers[i]);
+        }
+        return result;
+    }
+
+    private MeshData applyOverrides(MeshData data) {
+        MeshData copy = null;
+        for (int i = 0; i < data.header.polyCount; i++) {
+            Poly poly = data.polys[i];
+            if (poly.getType() == Poly.DT_POLYTYPE_OFFMESH_CONNECTION) {
+                continue;
+            }
+            int flags = poly.flags;
+            for (FlagsOverride o : overrides) {
+                if ((poly.flags & o.includeFlags) != 0 && o.contains(data, poly)) {
+                    flags = o.flags;
+                }
+            }
+            if (flags != poly.flags) {
+                if (copy == null) {
+                    copy = VersionedNavMesh.copyPolys(data);
+                }
+                copy.polys[i].flags = flags;
+            }
+        }
+        return copy != null ? copy : data;
+    }
+
+    /**
+     * @return True if none of the current layers is one of the published ones
+     *         and at least one of them changed.
+     */
+    private static boolean allRebuilt(MeshData[] current, MeshData[] previous) {
+        if (sameLayers(current, previous)) {
+            return false;
+        }
+        if (previous != null) {
+            for (MeshData data : current) {
+                for (MeshData old : previous) {
+                    if (data == old) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameLayers(MeshData[] a, MeshData[] b) {
+        int n = b != null ? b.length : 0;
+        if (a.length != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long key(int tx, int ty) {
+        return (long) tx << 32 | (ty & 0xFFFFFFFFL);
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.jme3.recast4j.Detour;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.recast4j.detour.MeshData;
+import org.recast4j.detour.MeshTile;
+import org.recast4j.detour.NavMesh;
+import org.recast4j.detour.NavMeshParams;
+import org.recast4j.detour.NavMeshQuery;
+import org.recast4j.detour.Poly;
+
+/**
+ * A NavMesh that can be patched in the background while other threads query
+ * it.
+ * <p>
+ * Two NavMesh instances hold the same tiles. Readers pin the front one with
+ * {@link #acquire()}, without locking, and see a consistent version until they
+ * release it. A writer patches the back one, publishes it atomically as the
+ * new front, and replays the patch on the old front the next time it writes,
+ * once the readers of that version are gone. A write costs the tiles it
+ * changes, not a copy of the whole NavMesh. The MeshData of the tiles is
+ * shared by both instances, so a patch must never modify it in place: to
+ * change the flags or areas of some polygons, replace the tile with a copy,
+ * see {@link #copyPolys(MeshData)}.
+ * <p>
+ * Readers should pin a version for a single query or a single slice of work:
+ * the next write waits for them. Only the writers are serialized.
+ *
+ * <pre>
+ * try (VersionedNavMesh.Snapshot snapshot = versionedNavMesh.acquire()) {
+ *     NavMeshQuery query = snapshot.getQuery();
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class VersionedNavMesh {
+
+    /**
+     * A change of the tiles. It is applied once to each NavMesh instance, so
+     * it must only depend on tile coordinates, MeshData and references, and
+     * must not modify the MeshData. Both instances receive the same changes in
+     * the same order and keep the same tile and poly references.
+     */
+    public interface TilePatch {
+        void apply(NavMesh navMesh);
+    }
+
+    private static class Buffer {
+        final NavMesh navMesh;
+        final AtomicInteger readers = new AtomicInteger();
+        // One query per thread and per buffer, created on first use.
+        final ThreadLocal<NavMeshQuery> queries;
+        volatile long version;
+
+        Buffer(NavMesh navMesh) {
+            this.navMesh = navMesh;
+            this.queries = ThreadLocal.withInitial(() -> new NavMeshQuery(navMesh));
+        }
+    }
+
+    /**
+     * A pinned version of the NavMesh. Must be closed by the thread that
+     * acquired it.
+     */
+    public static class Snapshot implements AutoCloseable {
+
+        private Buffer buffer;
+        private final long version;
+
+        private Snapshot(Buffer buffer) {
+            this.buffer = buffer;
+            this.version = buffer.version;
+        }
+
+        public NavMesh getNavMesh() {
+            return buffer.navMesh;
+        }
+
+        /**
+         * @return The NavMeshQuery of the calling thread for this version.
+         */
+        public NavMeshQuery getQuery() {
+            return buffer.queries.get();
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public void close() {
+            if (buffer != null) {
+                buffer.readers.decrementAndGet();
+                buffer = null;
+            }
+        }
+    }
+
+    private final AtomicReference<Buffer> front;
+    // Writer side, guarded by this.
+    private Buffer back;
+    private final List<TilePatch> lagging = new ArrayList<>();
+
+    /**
+     * Takes ownership of the NavMesh: it must not be modified afterwards,
+     * except through {@link #publish(TilePatch)}.
+     *
+     * @param navMesh
+     */
+    public VersionedNavMesh(NavMesh navMesh) {
+        NavMesh copy = new NavMesh(navMesh.getParams(), navMesh.getMaxVertsPerPoly());
+        for (int i = 0; i < navMesh.getMaxTiles(); i++) {
+            MeshTile tile = navMesh.getTile(i);
+            if (tile != null && tile.data != null) {
+                // Same index and salt, so the references match in both.
+                copy.addTile(tile.data, 0, navMesh.getTileRef(tile));
+            }
+        }
+        this.front = new AtomicReference<>(new Buffer(navMesh));
+        this.back = new Buffer(copy);
+    }
+
+    /**
+     * Pins the current version. Never blocks.
+     *
+     * @return
+     */
+    public Snapshot acquire() {
+        while (true) {
+            Buffer buffer = front.get();
+            buffer.readers.incrementAndGet();
+            // The writer only patches the back buffer, so it is safe to use
+            // once it is confirmed to still be the front one.
+            if (front.get() == buffer) {
+                return new Snapshot(buffer);
+            }
+            buffer.readers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of the current version.
+     */
+    public long getVersion() {
+        return front.get().version;
+    }
+
+    public NavMeshParams getParams() {
+        return front.get().navMesh.getParams();
+    }
+
+    public int getMaxVertsPerPoly() {
+        return front.get().navMesh.getMaxVertsPerPoly();
+    }
+
+    /**
+     * Applies the patch to the back NavMesh and publishes it. Waits for the
+     * readers of the back NavMesh to release it first.
+     *
+     * @param patch
+     * @return The number of the new version.
+     */
+    public synchronized long publish(TilePatch patch) {
+        while (back.readers.get() > 0) {
+            LockSupport.parkNanos(50_000);
+        }
+        for (TilePatch p : lagging) {
+            p.apply(back.navMesh);
+        }
+        lagging.clear();
+        patch.apply(back.navMesh);
+
+        Buffer previous = front.get();
+        back.version = previous.version + 1;
+        front.set(back);
+
+        back = previous;
+        lagging.add(patch);
+        return previous.version + 1;
+    }
+
+    /**
+     * Replaces the layer of a tile.
+     *
+     * @param tx    The x coordinate of the tile.
+     * @param ty    The y coordinate of the tile.
+     * @param layer The layer of the tile.
+     * @param data  The new tile, or null to remove it.
+     * @return The number of the new version.
+     */
+    public long setTile(int tx, int ty, int layer, MeshData data) {
+        return publish(navMesh -> replaceTile(navMesh, tx, ty, layer, data));
+    }
+
+    /**
+     * Replaces the layer of a tile of a NavMesh.
+     *
+     * @param navMesh
+     * @param tx
+     * @param ty
+     * @param layer
+     * @param data    The new tile, or null to remove it.
+     */
+    public static void replaceTile(NavMesh navMesh, int tx, int ty, int layer, MeshData data) {
+        long ref = navMesh.getTileRefAt(tx, ty, layer);
+        if (ref != 0) {
+            navMesh.removeTile(ref);
+        }
+        if (data != null) {
+            navMesh.addTile(data, 0, 0);
+        }
+    }
+
+    /**
+     * Replaces all the layers of a tile of a NavMesh.
+     *
+     * @param navMesh
+     * @param tx
+     * @param ty
+     * @param layers  The new layers, possibly none.
+     */
+    public static void replaceTiles(NavMesh navMesh, int tx, int ty, MeshData[] layers) {
+        for (MeshTile tile : navMesh.getTilesAt(tx, ty)) {
+            navMesh.removeTile(navMesh.getTileRef(tile));
+        }
+        for (MeshData data : layers) {
+            navMesh.addTile(data, 0, 0);
+        }
+    }
+
+    /**
+     * Copies a tile with its own polygons, whose flags and areas can then be
+     * changed without affecting the published versions. The vertices, detail
+     * meshes, BV tree and off-mesh connections are shared with the original.
+     *
+     * @param data
+     * @return The copy.
+     */
+    public static MeshData copyPolys(MeshData data) {
+        MeshData copy = new MeshData();
+        copy.header = data.header;
+        copy.verts = data.verts;
+        copy.detailMeshes = data.detailMeshes;
+        copy.detailVerts = data.detailVerts;
+        copy.detailTris = data.detailTris;
+        copy.bvTree = data.bvTree;
+        copy.offMeshCons = data.offMeshCons;
+        copy.polys = new Poly[data.polys.length];
+        for (int i = 0; i < data.polys.length; i++) {
+            Poly poly = data.polys[i];
+            Poly p = new Poly(i, poly.verts.length);
+            System.arraycopy(poly.verts, 0, p.verts, 0, poly.verts.length);
+            System.arraycopy(poly.neis, 0, p.neis, 0, poly.neis.length);
+            p.flags = poly.flags;
+            p.vertCount = poly.vertCount;
+            p.setArea(poly.getArea());
+            p.setType(poly.getType());
+            copy.polys[i] = p;
+        }
+        return copy;
+    }
+
+}
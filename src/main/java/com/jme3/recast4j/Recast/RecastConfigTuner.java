@@ -0,0 +1,263 @@
+package com.jme3.recast4j.Recast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.recast4j.recast.Recast;
+import org.recast4j.recast.RecastBuilder.RecastBuilderResult;
+import org.recast4j.recast.RecastBuilderConfig;
+import org.recast4j.recast.RecastConfig;
+import org.recast4j.recast.RecastConstants.PartitionType;
+
+import com.jme3.recast4j.geom.JmeInputGeomProvider;
+import com.jme3.recast4j.geom.JmeRecastBuilder;
+
+/**
+ * Picks the tile size, cell size and partition type of a tiled build.
+ * <p>
+ * Each candidate config builds a few representative tiles of the geometry
+ * (the densest one and tiles at regular quantiles of the triangle count),
+ * measuring the build time, the allocated memory and the polygon count. The
+ * results are extrapolated to the whole level and the candidates are ranked
+ * against a target build time and a target query cost.
+ * <p>
+ * The query cost is the estimated number of polygons a path crosses per world
+ * unit, sqrt(polygons / walkable area); A* and the string pulling scale with
+ * it.
+ *
+ * <pre>
+ * RecastConfigTuner tuner = new RecastConfigTuner(m_geom, new RecastConfigBuilder());
+ * tuner.setTargetBuildMillis(2000);
+ * tuner.setTargetQueryCost(1.5f);
+ * RecastConfig cfg = tuner.apply().build();
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class RecastConfigTuner {
+
+    /**
+     * The measures of a candidate config.
+     */
+    public static class Candidate {
+        public final PartitionType partitionType;
+        public final float cellSize;
+        public final int tileSize;
+        // Number of tiles built to measure the candidate.
+        public int sampledTiles;
+        // Number of tiles of the level overlapping some geometry.
+        public int nonEmptyTiles;
+        public float avgTileMillis;
+        public long avgTileBytes;
+        public float avgTilePolys;
+        // Extrapolated to the whole level.
+        public float estimatedBuildMillis;
+        public float queryCost;
+
+        Candidate(PartitionType partitionType, float cellSize, int tileSize) {
+            this.partitionType = partitionType;
+            this.cellSize = cellSize;
+            this.tileSize = tileSize;
+        }
+
+        @Override
+        public String toString() {
+            return "Candidate [partitionType=" + partitionType
+                    + ", cellSize=" + cellSize
+                    + ", tileSize=" + tileSize
+                    + ", avgTileMillis=" + avgTileMillis
+                    + ", avgTileBytes=" + avgTileBytes
+                    + ", avgTilePolys=" + avgTilePolys
+                    + ", estimatedBuildMillis=" + estimatedBuildMillis
+                    + ", queryCost=" + queryCost
+                    + "]";
+        }
+    }
+
+    private final JmeInputGeomProvider geom;
+    private final RecastConfigBuilder base;
+
+    private int[] tileSizes = { 16, 32, 64, 128 };
+    private float[] cellSizes;
+    private PartitionType[] partitionTypes = { PartitionType.WATERSHED, PartitionType.MONOTONE, PartitionType.LAYERS };
+    private int samples = 5;
+    private float targetBuildMillis = Float.MAX_VALUE;
+    private float targetQueryCost = Float.MAX_VALUE;
+
+    /**
+     *
+     * @param geom The geometry of the level.
+     * @param base The config to tune. The agent and region values are kept.
+     */
+    public RecastConfigTuner(JmeInputGeomProvider geom, RecastConfigBuilder base) {
+        this.geom = geom;
+        this.base = base;
+    }
+
+    public void setTileSizes(int... tileSizes) {
+        this.tileSizes = tileSizes;
+    }
+
+    /**
+     * Default: the cell size of the base config.
+     */
+    public void setCellSizes(float... cellSizes) {
+        this.cellSizes = cellSizes;
+    }
+
+    public void setPartitionTypes(PartitionType... partitionTypes) {
+        this.partitionTypes = partitionTypes;
+    }
+
+    /**
+     * Number of tiles built for each candidate. Default: 5
+     */
+    public void setSamples(int samples) {
+        this.samples = Math.max(1, samples);
+    }
+
+    /**
+     * Estimated time of a single threaded build of the whole level.
+     */
+    public void setTargetBuildMillis(float targetBuildMillis) {
+        this.targetBuildMillis = targetBuildMillis;
+    }
+
+    /**
+     * Polygons crossed by a path per world unit.
+     */
+    public void setTargetQueryCost(float targetQueryCost) {
+        this.targetQueryCost = targetQueryCost;
+    }
+
+    /**
+     * Measures every candidate.
+     *
+     * @return The candidates, best first.
+     */
+    public List<Candidate> tune() {
+        float[] cs = cellSizes != null ? cellSizes : new float[] { createBuilder(null, 0, 0).build().cs };
+
+        // Warm up the JIT and the lazily built geometry, so the first
+        // candidate is not measured cold.
+        measure(new Candidate(partitionTypes[0], cs[0], tileSizes[0]));
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (PartitionType partitionType : partitionTypes) {
+            for (float cellSize : cs) {
+                for (int tileSize : tileSizes) {
+                    Candidate c = new Candidate(partitionType, cellSize, tileSize);
+                    measure(c);
+                    candidates.add(c);
+                }
+            }
+        }
+
+        // Candidates meeting both targets first, then the fastest build.
+        candidates.sort(Comparator.comparing((Candidate c) -> !meetsTargets(c))
+                .thenComparingDouble(c -> c.estimatedBuildMillis));
+        return candidates;
+    }
+
+    /**
+     * @return The best candidate.
+     */
+    public Candidate recommend() {
+        return tune().get(0);
+    }
+
+    /**
+     * Tunes the config and returns a copy of the base builder using the best
+     * candidate.
+     *
+     * @return
+     */
+    public RecastConfigBuilder apply() {
+        Candidate best = recommend();
+        return createBuilder(best.partitionType, best.cellSize, best.tileSize);
+    }
+
+    private boolean meetsTargets(Candidate c) {
+        return c.estimatedBuildMillis <= targetBuildMillis && c.queryCost <= targetQueryCost;
+    }
+
+    private RecastConfigBuilder createBuilder(PartitionType partitionType, float cellSize, int tileSize) {
+        RecastConfigBuilder builder = base.clone();
+        if (!builder.modifiedCalculatedValue) {
+            builder.deriveValues();
+        }
+        if (partitionType != null) {
+            builder.withPartitionType(partitionType)
+                   .withCellSize(cellSize)
+                   .withTileSize(tileSize);
+        }
+        return builder;
+    }
+
+    private void measure(Candidate c) {
+        RecastConfig cfg = createBuilder(c.partitionType, c.cellSize, c.tileSize).build();
+
+        float[] bmin = geom.getMeshBoundsMin();
+        float[] bmax = geom.getMeshBoundsMax();
+        int[] twh = Recast.calcTileCount(bmin, bmax, cfg.cs, cfg.tileSize);
+        int tw = twh[0];
+        int th = twh[1];
+
+        int[] triCount = JmeRecastBuilder.countTriangles(geom, cfg, bmin, bmax, tw, th);
+        int[] tiles = selectSamples(triCount);
+        c.nonEmptyTiles = (int) Arrays.stream(triCount).filter(n -> n > 0).count();
+        c.sampledTiles = tiles.length;
+        if (tiles.length == 0) {
+            return;
+        }
+
+        JmeRecastBuilder rcBuilder = new JmeRecastBuilder();
+        long nanos = 0;
+        long polys = 0;
+        long walkableCells = 0;
+        for (int tile : tiles) {
+            RecastBuilderConfig builderCfg = new RecastBuilderConfig(cfg, bmin, bmax, tile / th, tile % th, true);
+            long start = System.nanoTime();
+            RecastBuilderResult result = rcBuilder.build(geom, builderCfg);
+            nanos += System.nanoTime() - start;
+            polys += result.getMesh().npolys;
+            walkableCells += result.getCompactHeightfield().spanCount;
+        }
+
+        c.avgTileMillis = nanos / 1e6f / tiles.length;
+        c.avgTileBytes = rcBuilder.getAllocatedBytesPerTile();
+        c.avgTilePolys = (float) polys / tiles.length;
+        c.estimatedBuildMillis = c.avgTileMillis * c.nonEmptyTiles;
+
+        // Spans approximate the walkable area, one cell each.
+        float walkableArea = walkableCells * cfg.cs * cfg.cs;
+        c.queryCost = walkableArea > 0 ? (float) Math.sqrt(polys / walkableArea) : 0;
+    }
+
+    /**
+     * Picks the densest non empty tile and tiles at regular quantiles of the
+     * triangle count.
+     */
+    private int[] selectSamples(int[] triCount) {
+        Integer[] order = new Integer[triCount.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> triCount[i]).reversed());
+
+        int nonEmpty = 0;
+        while (nonEmpty < order.length && triCount[order[nonEmpty]] > 0) {
+            nonEmpty++;
+        }
+
+        int n = Math.min(samples, nonEmpty);
+        int[] tiles = new int[n];
+        for (int i = 0; i < n; i++) {
+            tiles[i] = order[n > 1 ? i * (nonEmpty - 1) / (n - 1) : 0];
+        }
+        return tiles;
+    }
+
+}
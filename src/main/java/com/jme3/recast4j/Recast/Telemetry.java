@@ -17,39 +17,480 @@ freely, subject to the following restrictions:
 */
 package com.jme3.recast4j.Recast;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.recast4j.recast.Context;
 
 /**
+ * A Context that measures the time spent in each stage of a build.
+ * <p>
+ * Every timer name is registered once and gets an integer id. The start time
+ * of a timer is kept in a per-thread array indexed by id, and the durations
+ * are accumulated in striped LongAdder counters and a log-linear histogram,
+ * so concurrent workers never share a lock. The stages of
+ * {@link Stage} are pre-registered; the internal Recast timers are registered
+ * the first time they are seen. Recast names its timers with string
+ * constants, so each thread resolves them through a small identity cache
+ * instead of the shared name map.
+ * <p>
+ * Between {@link #beginTile(int, int)} and {@link #endTile()} the timers are
+ * also recorded for the tile, along with its span and polygon counts, so the
+ * per-tile distribution of every stage can be exported with
+ * {@link #writeReport(Path)}.
+ * <p>
+ * A disabled Telemetry returns from every method right away.
  * 
  * @author capdevon
  */
 public class Telemetry extends Context {
 
-    private final ThreadLocal<Map<String, AtomicLong>> timerStart = ThreadLocal.withInitial(HashMap::new);
-    private final Map<String, AtomicLong> timerAccum = new ConcurrentHashMap<>();
+    /**
+     * The stages of a tile build, timed by JmeRecastBuilder and the NavMesh
+     * builders. Recast also reports its own internal timers.
+     */
+    public enum Stage {
+        RASTERIZE, FILTER, COMPACT, ERODE, MARK_VOLUMES, DISTANCE_FIELD, REGIONS, CONTOURS, POLYMESH, DETAIL_MESH, DETOUR_TILE
+    }
+
+    /**
+     * The timers and counters of a single tile.
+     */
+    public static class TileRecord {
+        public final int tx;
+        public final int ty;
+        // Spans of the compact heightfield.
+        public volatile int spanCount;
+        // Polygons of the poly mesh.
+        public volatile int polyCount;
+        // Nanoseconds spent in each timer, indexed by timer id. Only updated by 
+        // the thread that opened the tile.
+        private long[] nanos = new long[32];
+
+        TileRecord(int tx, int ty) {
+            this.tx = tx;
+            this.ty = ty;
+        }
+
+        private void add(int id, long delta) {
+            if (id >= nanos.length) {
+                nanos = Arrays.copyOf(nanos, Math.max(id + 1, nanos.length * 2));
+            }
+            nanos[id] += delta;
+        }
+    }
+
+    // Log-linear histogram: 2^SUB_BITS buckets per power of two, so a bucket
+    // is at most 1 / 2^SUB_BITS wider than its lower bound.
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * The accumulators of a timer.
+     */
+    private static class Timer {
+        final String name;
+        final LongAdder sum = new LongAdder();
+        final LongAdder count = new LongAdder();
+        final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            sum.add(nanos);
+            count.increment();
+            min.accumulate(nanos);
+            max.accumulate(nanos);
+            histogram.incrementAndGet(bucketOf(nanos));
+        }
+
+        long percentile(double p) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> exp) & (SUB_BUCKETS - 1);
+        return (exp + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << exp) - 1;
+    }
+
+    /**
+     * The timer state of a thread: the start time of each timer, indexed by
+     * id, and the ids of the timer names already seen by the thread, in an
+     * open addressing table keyed by identity.
+     */
+    private static class ThreadState {
+        long[] start = new long[32];
+        String[] names = new String[32];
+        int[] ids = new int[32];
+        int size;
+
+        /**
+         * @return The id of the name, or -1 if not cached.
+         */
+        int get(String name) {
+            int mask = names.length - 1;
+            for (int i = System.identityHashCode(name) & mask; names[i] != null; i = (i + 1) & mask) {
+                if (names[i] == name) {
+                    return ids[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String name, int id) {
+            if (size * 2 >= names.length) {
+                String[] oldNames = names;
+                int[] oldIds = ids;
+                names = new String[oldNames.length * 2];
+                ids = new int[oldNames.length * 2];
+                size = 0;
+                for (int i = 0; i < oldNames.length; i++) {
+                    if (oldNames[i] != null) {
+                        put(oldNames[i], oldIds[i]);
+                    }
+                }
+            }
+            int mask = names.length - 1;
+            int i = System.identityHashCode(name) & mask;
+            while (names[i] != null) {
+                i = (i + 1) & mask;
+            }
+            names[i] = name;
+            ids[i] = id;
+            size++;
+        }
+    }
+
+    private final boolean enabled;
+    // Timer ids by name, and timers by id (copy on write, grows rarely).
+    private final Map<String, Integer> timerIds = new ConcurrentHashMap<>();
+    private volatile Timer[] timers = new Timer[0];
+
+    // Start times and name cache of the calling thread.
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+    private final ThreadLocal<TileRecord> currentTile = new ThreadLocal<>();
+    private final Map<Long, TileRecord> tiles = new ConcurrentHashMap<>();
+
+    public Telemetry() {
+        this(true);
+    }
+
+    /**
+     * @param enabled False to create a Telemetry that measures nothing.
+     */
+    public Telemetry(boolean enabled) {
+        this.enabled = enabled;
+        for (Stage stage : Stage.values()) {
+            register(stage.name());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers a timer name.
+     * 
+     * @param name
+     * @return The id of the timer.
+     */
+    public int register(String name) {
+        Integer id = timerIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (timerIds) {
+            id = timerIds.get(name);
+            if (id == null) {
+                Timer[] array = Arrays.copyOf(timers, timers.length + 1);
+                id = array.length - 1;
+                array[id] = new Timer(name);
+                timers = array;
+                timerIds.put(name, id);
+            }
+            return id;
+        }
+    }
 
     public void startTimer(String name) {
-        timerStart.get().put(name, new AtomicLong(System.nanoTime()));
+        if (enabled) {
+            ThreadState state = threadState.get();
+            start(state, resolve(state, name));
+        }
     }
 
     public void stopTimer(String name) {
-        if (timerStart.get().get(name) != null) {
-            long delta = System.nanoTime() - timerStart.get().get(name).get();
-            timerAccum.computeIfAbsent(name, __ -> new AtomicLong()).addAndGet(delta);
+        if (enabled) {
+            ThreadState state = threadState.get();
+            stop(state, resolve(state, name));
+        }
+    }
+
+    private int resolve(ThreadState state, String name) {
+        int id = state.get(name);
+        if (id < 0) {
+            id = register(name);
+            state.put(name, id);
+        }
+        return id;
+    }
+
+    public void startTimer(Stage stage) {
+        if (enabled) {
+            startTimer(stage.ordinal());
+        }
+    }
+
+    public void stopTimer(Stage stage) {
+        if (enabled) {
+            stopTimer(stage.ordinal());
+        }
+    }
+
+    /**
+     * Starts a timer by id, see {@link #register(String)}.
+     */
+    public void startTimer(int id) {
+        if (enabled) {
+            start(threadState.get(), id);
+        }
+    }
+
+    /**
+     * Stops a timer by id, see {@link #register(String)}.
+     */
+    public void stopTimer(int id) {
+        if (enabled) {
+            stop(threadState.get(), id);
+        }
+    }
+
+    private void start(ThreadState state, int id) {
+        if (id >= state.start.length) {
+            state.start = Arrays.copyOf(state.start, Math.max(id + 1, state.start.length * 2));
+        }
+        state.start[id] = System.nanoTime();
+    }
+
+    private void stop(ThreadState state, int id) {
+        long[] start = state.start;
+        if (id >= start.length || start[id] == 0) {
+            return;
+        }
+        long delta = System.nanoTime() - start[id];
+        start[id] = 0;
+        timers[id].record(delta);
+
+        TileRecord tile = currentTile.get();
+        if (tile != null) {
+            tile.add(id, delta);
+        }
+    }
+
+    /**
+     * Records the timers of the calling thread into the record of the tile
+     * until {@link #endTile()}. A tile may be opened several times, for
+     * example once by the Recast build and once for the Detour tile creation.
+     * 
+     * @param tx
+     * @param ty
+     */
+    public void beginTile(int tx, int ty) {
+        if (enabled) {
+            long key = ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+            currentTile.set(tiles.computeIfAbsent(key, __ -> new TileRecord(tx, ty)));
+        }
+    }
+
+    public void endTile() {
+        if (enabled) {
+            currentTile.remove();
         }
     }
 
+    /**
+     * Sets the span and polygon counts of the current tile.
+     * 
+     * @param spanCount
+     * @param polyCount
+     */
+    public void setTileCounts(int spanCount, int polyCount) {
+        if (!enabled) {
+            return;
+        }
+        TileRecord tile = currentTile.get();
+        if (tile != null) {
+            tile.spanCount = spanCount;
+            tile.polyCount = polyCount;
+        }
+    }
+
+    /**
+     * @return The records of the tiles, sorted by tile coordinates.
+     */
+    public List<TileRecord> getTileRecords() {
+        List<TileRecord> list = new ArrayList<>(tiles.values());
+        list.sort(Comparator.comparingInt((TileRecord t) -> t.tx).thenComparingInt(t -> t.ty));
+        return list;
+    }
+
+    /**
+     * @param tile
+     * @return The nanoseconds spent in each timer by the tile.
+     */
+    public Map<String, Long> getTileTimers(TileRecord tile) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        Timer[] array = timers;
+        long[] nanos = tile.nanos;
+        for (int id = 0; id < Math.min(array.length, nanos.length); id++) {
+            if (nanos[id] != 0) {
+                result.put(array[id].name, nanos[id]);
+            }
+        }
+        return result;
+    }
+
     public void warn(String string) {
         System.err.println(string);
     }
 
     public void print() {
-        timerAccum.forEach((n, v) -> System.out.println(n + ": " + v.get() / 1000000));
+        for (Timer t : timers) {
+            long count = t.count.sum();
+            if (count > 0) {
+                System.out.println(t.name + ": " + t.sum.sum() / 1000000 + " ms"
+                        + " (count=" + count
+                        + ", min=" + t.min.get() / 1000 + " us"
+                        + ", p50=" + t.percentile(0.50) / 1000 + " us"
+                        + ", p99=" + t.percentile(0.99) / 1000 + " us"
+                        + ", max=" + t.max.get() / 1000 + " us)");
+            }
+        }
+    }
+
+    /**
+     * Writes the totals, the per-stage distribution over the tiles and the 
+     * records of every tile as JSON. Times are in microseconds.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void writeReport(Path file) throws IOException {
+        Files.writeString(file, toJson());
+    }
+
+    public String toJson() {
+        List<TileRecord> records = getTileRecords();
+        StringBuilder sb = new StringBuilder();
+
+        // Every call of each timer.
+        sb.append("{\n  \"timers\": {");
+        String sep = "";
+        for (Timer t : timers) {
+            long count = t.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            sb.append(sep).append("\n    \"").append(t.name).append("\": {")
+              .append("\"total\": ").append(t.sum.sum() / 1000)
+              .append(", \"count\": ").append(count)
+              .append(", \"min\": ").append(t.min.get() / 1000)
+              .append(", \"p50\": ").append(t.percentile(0.50) / 1000)
+              .append(", \"p95\": ").append(t.percentile(0.95) / 1000)
+              .append(", \"p99\": ").append(t.percentile(0.99) / 1000)
+              .append(", \"max\": ").append(t.max.get() / 1000)
+              .append("}");
+            sep = ",";
+        }
+        sb.append("\n  },\n  \"stages\": {");
+
+        // Distribution of each timer over the tiles.
+        Map<String, List<Long>> samples = new TreeMap<>();
+        for (TileRecord tile : records) {
+            getTileTimers(tile).forEach((n, v) -> samples.computeIfAbsent(n, __ -> new ArrayList<>()).add(v));
+        }
+        sep = "";
+        for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+            long[] values = entry.getValue().stream().mapToLong(Long::longValue).sorted().toArray();
+            sb.append(sep).append("\n    \"").append(entry.getKey()).append("\": {")
+              .append("\"count\": ").append(values.length)
+              .append(", \"min\": ").append(values[0] / 1000)
+              .append(", \"p50\": ").append(percentile(values, 0.50) / 1000)
+              .append(", \"p95\": ").append(percentile(values, 0.95) / 1000)
+              .append(", \"p99\": ").append(percentile(values, 0.99) / 1000)
+              .append(", \"max\": ").append(values[values.length - 1] / 1000)
+              .append(", \"mean\": ").append(Arrays.stream(values).sum() / values.length / 1000)
+              .append("}");
+            sep = ",";
+        }
+        sb.append("\n  },\n  \"tiles\": [");
+
+        sep = "";
+        for (TileRecord tile : records) {
+            sb.append(sep).append("\n    {\"tx\": ").append(tile.tx)
+              .append(", \"ty\": ").append(tile.ty)
+              .append(", \"spans\": ").append(tile.spanCount)
+              .append(", \"polys\": ").append(tile.polyCount)
+              .append(", \"timers\": {");
+            String sep2 = "";
+            for (Map.Entry<String, Long> entry : new TreeMap<>(getTileTimers(tile)).entrySet()) {
+                sb.append(sep2).append("\"").append(entry.getKey()).append("\": ").append(entry.getValue() / 1000);
+                sep2 = ", ";
+            }
+            sb.append("}}");
+            sep = ",";
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    private long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
     }
 
 }
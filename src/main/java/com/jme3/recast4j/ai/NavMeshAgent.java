@@ -1,12 +1,17 @@
 package com.jme3.recast4j.ai;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.recast4j.detour.NavMesh;
+import org.recast4j.detour.NavMeshQuery;
 
 import com.jme3.app.Application;
 import com.jme3.bullet.control.BetterCharacterControl;
@@ -34,12 +39,35 @@ public class NavMeshAgent extends AdapterControl {
 
     private BetterCharacterControl bcc;
     private ScheduledExecutorService executor;
+    private NavMesh navMesh;
     private NavMeshTool navtool;
+    //Queries made on the render thread, created when first needed.
+    private NavMeshTool renderTool;
+    private NavMeshQueryService queryService;
+    private PathRequestQueue pathQueue;
+    private CompletableFuture<NavMeshPath> pathFuture;
+    //Last path request sent to the query service and the path it fills,
+    //taken by the update loop once done.
+    private CompletableFuture<Boolean> pathResult;
+    private NavMeshPath requestedPath;
     private NavMeshQueryFilter filter = new NavMeshQueryFilter();
     private NavMeshPath navPath;
+    //Filled by the path queue, then swapped with navPath, so the buffers of
+    //the paths are reused.
+    private NavMeshPath queuedPath = new NavMeshPath();
+    //Is navPath one of the buffers of the agent, not set with setPath?
+    private boolean ownsNavPath = true;
+    //Corridor follower, null when following the corners of navPath.
+    private NavMeshCorridor corridor;
+    //Next corners of the corridor, found again each frame.
+    private final NavMeshPath cornerPath = new NavMeshPath();
+    private final float[] agentPos = new float[3];
+    private final float[] targetPos = new float[3];
     private final Vector3f destination = new Vector3f();
     private final Vector3f position2D = new Vector3f();
     private final Vector3f waypoint2D = new Vector3f();
+    private final Vector3f wayPoint = new Vector3f();
+    private final Vector3f direction = new Vector3f();
     private final Vector3f viewDirection = new Vector3f(0, 0, 1);
     private final Quaternion lookRotation = new Quaternion();
     
@@ -50,7 +78,7 @@ public class NavMeshAgent extends AdapterControl {
     //Does the agent currently have a path? (Read Only)
     private boolean hasPath;
     //Is a path in the process of being computed but not yet ready? (Read Only)
-    private boolean pathPending;
+    private volatile boolean pathPending;
     //This property holds the stop or resume condition of the NavMesh agent.
     private boolean isStopped;
     private boolean atGoal = true;
@@ -70,11 +98,38 @@ public class NavMeshAgent extends AdapterControl {
      * @param app
      */
     public NavMeshAgent(NavMesh navMesh, Application app) {
+        this.navMesh = navMesh;
         this.navtool = new NavMeshTool(navMesh);
         this.navPath = new NavMeshPath();
         this.pathViewer = new NavPathDebugViewer(app.getAssetManager());
         this.executor = Executors.newScheduledThreadPool(1);
     }
+
+    /**
+     * Shares the NavMeshQuery and threads of the service with the other
+     * agents instead of creating its own.
+     * 
+     * @param queryService
+     * @param app
+     */
+    public NavMeshAgent(NavMeshQueryService queryService, Application app) {
+        this.queryService = queryService;
+        this.navPath = new NavMeshPath();
+        this.pathViewer = new NavPathDebugViewer(app.getAssetManager());
+    }
+
+    /**
+     * Computes its paths on the render thread, within the iteration budget
+     * of the queue shared with the other agents.
+     * 
+     * @param pathQueue
+     * @param app
+     */
+    public NavMeshAgent(PathRequestQueue pathQueue, Application app) {
+        this.pathQueue = pathQueue;
+        this.navPath = new NavMeshPath();
+        this.pathViewer = new NavPathDebugViewer(app.getAssetManager());
+    }
     
     @Override
     public void setSpatial(Spatial sp) {
@@ -83,15 +138,24 @@ public class NavMeshAgent extends AdapterControl {
         if (spatial != null) {
             this.bcc = getComponent(BetterCharacterControl.class);
             requireNonNull(bcc, BetterCharacterControl.class, NavMeshAgent.class);
-            startPathFinder();
+            if (executor != null) {
+                startPathFinder();
+            }
 
-        } else {
+        } else if (executor != null) {
             stopPathfinder();
+
+        } else if (pathQueue != null) {
+            pathQueue.cancel(this);
+            pathFuture = null;
         }
     }
 
     @Override
     protected void controlUpdate(float tpf) {
+        if (pathResult != null && pathResult.isDone()) {
+            takeRequestedPath();
+        }
         if (pathPending || isStopped) {
             return;
         }
@@ -100,15 +164,25 @@ public class NavMeshAgent extends AdapterControl {
         if (pathChanged) {
             drawPath();
             pathChanged = false;
+            if (corridor != null) {
+                corridor.setPath(navPath, spatial.getWorldTranslation().toArray(agentPos));
+            }
+        }
+
+        NavMeshPath path = navPath;
+        if (corridor != null && corridor.isActive()) {
+            if (!updateCorridor(tpf)) {
+                resetPath();
+                return;
+            }
+            path = cornerPath;
         }
         
         /**
          * getNextWayPoint will return always the same waypoint until we
          * manually advance to the next
          */
-        Vector3f wayPoint = navPath.getNextWaypoint();
-        
-        if (wayPoint != null) {
+        if (path.getNextWaypoint(wayPoint)) {
             atGoal = false;
 
             position2D.set(spatial.getWorldTranslation()).setY(0);
@@ -117,7 +191,7 @@ public class NavMeshAgent extends AdapterControl {
 
             // move char between waypoints until waypoint reached, then set null
             if (remainingDistance > stoppingDistance) {
-                Vector3f direction = waypoint2D.subtract(position2D).normalizeLocal();
+                direction.set(waypoint2D).subtractLocal(position2D).normalizeLocal();
                 
                 //smooth rotation
                 if (updateRotation && direction.lengthSquared() > 0) {
@@ -128,14 +202,63 @@ public class NavMeshAgent extends AdapterControl {
                 bcc.setWalkDirection(direction.multLocal(speed));
                 
             } //If at the final waypoint set at goal to true 
-            else if (navPath.isAtGoalWaypoint()) {
+            else if (isAtGoalWaypoint(path)) {
                 resetPath();
 
             } //If less than one from current waypoint and not the goal. Go to next waypoint 
             else {
-            	navPath.goToNextWaypoint();
+            	path.goToNextWaypoint();
+            }
+        }
+    }
+
+    /**
+     * Moves the corridor to the agent and finds its next corners, skipping
+     * the ones already reached.
+     */
+    private boolean updateCorridor(float tpf) {
+        spatial.getWorldTranslation().toArray(agentPos);
+        if (!query(tool -> corridor.update(tool.getNavMeshQuery(), filter, agentPos, tpf, cornerPath))) {
+            return false;
+        }
+
+        position2D.set(spatial.getWorldTranslation()).setY(0);
+        while (!isAtGoalWaypoint(cornerPath) && cornerPath.getNextWaypoint(wayPoint)) {
+            waypoint2D.set(wayPoint).setY(0);
+            if (position2D.distance(waypoint2D) > stoppingDistance) {
+                break;
             }
+            cornerPath.goToNextWaypoint();
         }
+        return true;
+    }
+
+    /**
+     * The corridor only finds a few corners ahead, the goal is the one
+     * flagged as the end of the path.
+     */
+    private boolean isAtGoalWaypoint(NavMeshPath path) {
+        if (path == cornerPath) {
+            return path.getCornerCount() > 0
+                    && (path.getCornerFlags(path.getCursor()) & NavMeshQuery.DT_STRAIGHTPATH_END) != 0;
+        }
+        return path.isAtGoalWaypoint();
+    }
+
+    /**
+     * Runs a query on the render thread.
+     */
+    private <T> T query(Function<NavMeshTool, T> task) {
+        if (pathQueue != null) {
+            return pathQueue.query(task);
+        }
+        if (queryService != null) {
+            return queryService.query(task);
+        }
+        if (renderTool == null) {
+            renderTool = new NavMeshTool(navMesh);
+        }
+        return task.apply(renderTool);
     }
 
     private void startPathFinder() {
@@ -177,6 +300,10 @@ public class NavMeshAgent extends AdapterControl {
      */
     public void resetPath() {
     	navPath.clearCorners();
+        cornerPath.clearCorners();
+        if (corridor != null) {
+            corridor.reset();
+        }
         bcc.setWalkDirection(Vector3f.ZERO);
         atGoal = true;
         hasPath = false;
@@ -205,6 +332,36 @@ public class NavMeshAgent extends AdapterControl {
         }
     }
 
+    /**
+     * Follow the paths as a corridor of polygons, optimized and repaired
+     * each frame, instead of a fixed list of corners.
+     * <p>
+     * Must be called from the update loop.
+     * 
+     * @param enabled
+     */
+    public void setCorridorEnabled(boolean enabled) {
+        if (enabled == (corridor != null)) {
+            return;
+        }
+        corridor = enabled ? new NavMeshCorridor() : null;
+        cornerPath.clearCorners();
+        if (enabled && hasPath) {
+            corridor.setPath(navPath, spatial.getWorldTranslation().toArray(agentPos));
+        }
+    }
+
+    public boolean isCorridorEnabled() {
+        return corridor != null;
+    }
+
+    /**
+     * @return The corridor follower, or null if disabled.
+     */
+    public NavMeshCorridor getCorridor() {
+        return corridor;
+    }
+
     public NavMeshQueryFilter getQueryFilter() {
         return filter;
     }
@@ -231,7 +388,86 @@ public class NavMeshAgent extends AdapterControl {
      */
     public void setDestination(Vector3f target) {
         this.destination.set(target);
+
+        // A target moving a little is followed by extending the corridor.
+        if (corridor != null && corridor.isActive() && !pathPending) {
+            destination.toArray(targetPos);
+            if (query(tool -> corridor.moveTarget(tool.getNavMeshQuery(), filter, targetPos, stoppingDistance))) {
+                return;
+            }
+        }
         pathPending = true;
+
+        if (pathQueue != null) {
+            requestQueuedPath();
+        } else if (queryService != null) {
+            requestPath();
+        }
+    }
+
+    /**
+     * Sends the path request to the path queue. A request still pending is
+     * replaced and its future reused, so the callback is only added once.
+     */
+    private void requestQueuedPath() {
+        CompletableFuture<NavMeshPath> future = pathQueue.request(this, spatial.getWorldTranslation(), destination, filter, queuedPath);
+        if (future == pathFuture) {
+            return;
+        }
+        pathFuture = future;
+        // Also called when the request is cancelled, by the queue or when the
+        // agent is removed, so that the agent does not wait forever.
+        future.whenComplete((path, ex) -> {
+            if (future != pathFuture) {
+                return;
+            }
+            pathFuture = null;
+            if (path != null) {
+                hasPath = path.getStatus() != NavMeshPathStatus.PathInvalid;
+                if (hasPath) {
+                    //The previous path becomes the buffer of the next request,
+                    //unless it belongs to the caller of setPath.
+                    queuedPath = ownsNavPath ? navPath : new NavMeshPath();
+                    navPath = path;
+                    ownsNavPath = true;
+                    // display motion path
+                    pathChanged = true;
+                }
+            }
+            pathPending = false;
+        });
+    }
+
+    /**
+     * Sends the path request to the query service. Only the result of the
+     * last request is kept.
+     */
+    private void requestPath() {
+        requestedPath = new NavMeshPath();
+        pathResult = queryService.computePath(spatial.getWorldTranslation(), destination, filter, requestedPath);
+    }
+
+    /**
+     * Takes the result of the last request sent to the query service. The
+     * future is polled by the update loop, so the path and the state of the
+     * agent are only written on the render thread.
+     */
+    private void takeRequestedPath() {
+        boolean found = false;
+        try {
+            found = pathResult.join();
+        } catch (CompletionException | CancellationException ex) {
+            LOG.log(Level.SEVERE, "Path request failed", ex);
+        }
+        hasPath = found;
+        if (hasPath) {
+            navPath = requestedPath;
+            // display motion path
+            pathChanged = true;
+        }
+        pathResult = null;
+        requestedPath = null;
+        pathPending = false;
     }
 
     /**
@@ -297,6 +533,7 @@ public class NavMeshAgent extends AdapterControl {
     public boolean setPath(NavMeshPath path) {
         if (!hasPath) {
             navPath = path;
+            ownsNavPath = false;
             // display motion path
             pathChanged = true;
             return true;
@@ -319,6 +556,9 @@ public class NavMeshAgent extends AdapterControl {
      * @return True if a path is found.
      */
     public boolean calculatePath(Vector3f targetPosition, NavMeshPath path) {
+        if (pathQueue != null || queryService != null) {
+            return query(tool -> tool.computePath(spatial.getWorldTranslation(), targetPosition, filter, path));
+        }
         return navtool.computePath(spatial.getWorldTranslation(), targetPosition, filter, path);
     }
 
@@ -331,6 +571,9 @@ public class NavMeshAgent extends AdapterControl {
      * @return True if a nearest point is found.
      */
     public boolean samplePosition(Vector3f center, float range, Vector3f result) {
+        if (pathQueue != null || queryService != null) {
+            return query(tool -> tool.randomPoint(center, range, result, filter));
+        }
         return navtool.randomPoint(center, range, result, filter);
     }
 
@@ -0,0 +1,205 @@
+package com.jme3.recast4j.ai;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.recast4j.detour.FindNearestPolyResult;
+import org.recast4j.detour.NavMeshQuery;
+import org.recast4j.detour.Result;
+import org.recast4j.detour.StraightPathItem;
+import org.recast4j.detour.crowd.PathCorridor;
+
+/**
+ * Follows a path as a corridor of polygons instead of a fixed list of
+ * corners, like the agents of a Detour crowd.
+ * <p>
+ * Each frame the start of the corridor is moved to the position of the agent
+ * along the surface of the NavMesh and the next corners are found again from
+ * there, so an agent pushed off the path keeps a valid one. Within a time
+ * budget the corridor is shortened with raycasts (visibility) and small
+ * local searches (topology). When polygons ahead of the agent become invalid,
+ * because their tiles were rebuilt, only the corridor from the first invalid
+ * polygon is searched again. A target that moves a little is followed by
+ * extending the end of the corridor along the surface, without a new search.
+ * <p>
+ * The queries must be made on the thread that updates the agent.
+ *
+ * @author capdevon
+ */
+public class NavMeshCorridor {
+
+    // Number of corners found each frame.
+    private static final int MAX_CORNERS = 4;
+    // Number of polygons ahead of the agent validated each frame.
+    private static final int CHECK_LOOKAHEAD = 10;
+
+    private final PathCorridor corridor = new PathCorridor();
+    private final float[] agentPos = new float[3];
+    private final float[] targetPos = new float[3];
+    // Boxed polygons handed to the corridor, which copies them.
+    private final List<Long> polys = new ArrayList<>();
+    private boolean active;
+    private float topologyTimer;
+
+    //Maximum time spent in the optimizations each frame, in milliseconds.
+    public float optimizationBudget = 0.25f;
+    //Distance ahead of the agent shortened by the visibility optimization.
+    public float pathOptimizationRange = 10f;
+    //Seconds between two topology optimizations.
+    public float topologyOptimizationInterval = 0.5f;
+
+    /**
+     * Starts following a path.
+     *
+     * @param path The path to follow.
+     * @param pos  The position of the agent.
+     * @return False if the path is empty.
+     */
+    public boolean setPath(NavMeshPath path, float[] pos) {
+        active = path.getPolyCount() > 0 && path.getCornerCount() > 0;
+        if (!active) {
+            return false;
+        }
+
+        long[] pathPolys = path.getPolys();
+        polys.clear();
+        for (int i = 0; i < path.getPolyCount(); i++) {
+            polys.add(pathPolys[i]);
+        }
+        float[] corners = path.getStraightPath();
+        int end = (path.getCornerCount() - 1) * 3;
+        targetPos[0] = corners[end];
+        targetPos[1] = corners[end + 1];
+        targetPos[2] = corners[end + 2];
+
+        corridor.reset(polys.get(0), pos);
+        corridor.setCorridor(targetPos, polys);
+        topologyTimer = 0;
+        return true;
+    }
+
+    /**
+     * Moves the corridor to the position of the agent, repairs and optimizes
+     * it, and stores its next corners in the path.
+     *
+     * @param navQuery
+     * @param filter
+     * @param pos      The position of the agent.
+     * @param tpf
+     * @param corners  Receives the next corners of the corridor, not its
+     *                 polygons: see {@link #getPath()}.
+     * @return False if the corridor cannot be followed anymore.
+     */
+    public boolean update(NavMeshQuery navQuery, NavMeshQueryFilter filter, float[] pos, float tpf, NavMeshPath corners) {
+        if (!active) {
+            return false;
+        }
+        long deadline = System.nanoTime() + (long) (optimizationBudget * 1e6f);
+        System.arraycopy(pos, 0, agentPos, 0, 3);
+
+        if (!corridor.isValid(CHECK_LOOKAHEAD, navQuery, filter) && !repair(navQuery, filter)) {
+            active = false;
+            return false;
+        }
+        corridor.movePosition(agentPos, navQuery, filter);
+
+        List<StraightPathItem> items = corridor.findCorners(MAX_CORNERS, navQuery, filter);
+        if (items.isEmpty()) {
+            active = false;
+            return false;
+        }
+
+        // Shortcut to the furthest visible point of the corridor, then find
+        // the corners again from the shortened one.
+        if (System.nanoTime() < deadline) {
+            StraightPathItem next = items.get(Math.min(1, items.size() - 1));
+            if ((next.getFlags() & NavMeshQuery.DT_STRAIGHTPATH_OFFMESH_CONNECTION) == 0) {
+                corridor.optimizePathVisibility(next.getPos(), pathOptimizationRange, navQuery, filter);
+                items = corridor.findCorners(MAX_CORNERS, navQuery, filter);
+            }
+        }
+
+        topologyTimer += tpf;
+        if (topologyTimer >= topologyOptimizationInterval && System.nanoTime() < deadline) {
+            corridor.optimizePathTopology(navQuery, filter);
+            topologyTimer = 0;
+        }
+
+        corners.setCorners(items);
+        return true;
+    }
+
+    /**
+     * Searches again the corridor from its first invalid polygon to the
+     * target, keeping the valid polygons before it.
+     */
+    private boolean repair(NavMeshQuery navQuery, NavMeshQueryFilter filter) {
+        Result<FindNearestPolyResult> nearest = navQuery.findNearestPoly(agentPos, filter.m_polyExtents, filter);
+        if (nearest.failed() || nearest.result.getNearestRef() == 0) {
+            return false;
+        }
+        corridor.trimInvalidPath(nearest.result.getNearestRef(), nearest.result.getNearestPos(), navQuery, filter);
+
+        Result<FindNearestPolyResult> target = navQuery.findNearestPoly(targetPos, filter.m_polyExtents, filter);
+        if (target.failed() || target.result.getNearestRef() == 0) {
+            return false;
+        }
+        long lastRef = corridor.getLastPoly();
+        long targetRef = target.result.getNearestRef();
+        if (lastRef == targetRef) {
+            return true;
+        }
+
+        Result<List<Long>> tail = navQuery.findPath(lastRef, targetRef, corridor.getTarget(), target.result.getNearestPos(), filter);
+        if (tail.failed() || tail.result.isEmpty()) {
+            return false;
+        }
+        polys.clear();
+        polys.addAll(corridor.getPath());
+        polys.addAll(tail.result.subList(1, tail.result.size()));
+        corridor.setCorridor(target.result.getNearestPos(), polys);
+        return true;
+    }
+
+    /**
+     * Moves the end of the corridor to a new target along the surface of the
+     * NavMesh, for targets that move a little each frame.
+     *
+     * @param navQuery
+     * @param filter
+     * @param target    The new target.
+     * @param tolerance The maximum distance between the new target and the
+     *                  end of the corridor.
+     * @return False if the target cannot be reached this way and a new path
+     *         must be computed.
+     */
+    public boolean moveTarget(NavMeshQuery navQuery, NavMeshQueryFilter filter, float[] target, float tolerance) {
+        if (!active || !corridor.moveTargetPosition(target, navQuery, filter)) {
+            return false;
+        }
+        float[] end = corridor.getTarget();
+        float dx = end[0] - target[0];
+        float dz = end[2] - target[2];
+        System.arraycopy(end, 0, targetPos, 0, 3);
+        return dx * dx + dz * dz <= tolerance * tolerance;
+    }
+
+    /**
+     * Stops following the corridor.
+     */
+    public void reset() {
+        active = false;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return The polygons of the corridor, from the agent to the target.
+     */
+    public List<Long> getPath() {
+        return corridor.getPath();
+    }
+
+}
@@ -1,9 +1,10 @@
 package com.jme3.recast4j.ai;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
+import org.recast4j.detour.StraightPathItem;
+
 import com.jme3.math.Vector3f;
 
 /**
@@ -15,21 +16,57 @@ import com.jme3.math.Vector3f;
  * points correctly assigned is returned by the NavmeshTool.calculatePath
  * function.
  * 
+ * <p>
+ * The polygons and the corners of the path are stored in primitive buffers
+ * that are reused by the next path computed into this object, and only grow
+ * when a longer path is found. The corners are packed as x, y, z with the
+ * flags and the polygon reference of each one, and a cursor points to the
+ * next waypoint to reach. Following the path, and reading it with
+ * {@link #getCorner(int, Vector3f)} or {@link #forEachCorner(CornerVisitor)},
+ * allocates nothing.
+ * 
  * @author capdevon
  */
 public class NavMeshPath {
 
+    /**
+     * Receives the corners of a path.
+     */
+    public interface CornerVisitor {
+        void visit(int index, float x, float y, float z, int flags, long ref);
+    }
+
     // Status of the path.
     protected NavMeshPathStatus status;
-    // Corner points of the path.
-    protected LinkedList<Vector3f> waypointList;
-    protected Vector3f nextWaypoint = null;
+
+    // Polygons of the path corridor.
+    protected long[] polys;
+    protected int polyCount;
+    // Corner points of the path, packed as x, y, z.
+    protected float[] straightPath;
+    // Flags and polygon reference of each corner.
+    protected int[] straightPathFlags;
+    protected long[] straightPathRefs;
+    protected int cornerCount;
+    // Index of the next waypoint.
+    protected int cursor;
 
     /**
      * Constructor.
      */
     public NavMeshPath() {
-        waypointList = new LinkedList<>();
+        this(64, 16);
+    }
+
+    /**
+     * @param maxPolys   The initial capacity of the polygon buffer.
+     * @param maxCorners The initial capacity of the corner buffers.
+     */
+    public NavMeshPath(int maxPolys, int maxCorners) {
+        polys = new long[maxPolys];
+        straightPath = new float[maxCorners * 3];
+        straightPathFlags = new int[maxCorners];
+        straightPathRefs = new long[maxCorners];
     }
 
     /**
@@ -40,32 +77,180 @@ public class NavMeshPath {
     }
 
     /**
+     * Creates a new list with a copy of each corner point, see
+     * {@link #forEachCorner(CornerVisitor)} to read them without allocating.
+     * 
      * @return Corner points of the path. (Read Only)
      */
     public List<Vector3f> getCorners() {
-        return Collections.unmodifiableList(waypointList);
+        List<Vector3f> corners = new ArrayList<>(cornerCount);
+        for (int i = 0; i < cornerCount; i++) {
+            corners.add(getCorner(i, new Vector3f()));
+        }
+        return corners;
     }
 
     /**
      * Erase all corner points from path.
      */
     public void clearCorners() {
-        waypointList.clear();
-        nextWaypoint = null;
+        polyCount = 0;
+        cornerCount = 0;
+        cursor = 0;
         status = null;
     }
 
+    /**
+     * Copies another path into the buffers of this one.
+     * 
+     * @param path
+     */
+    public void set(NavMeshPath path) {
+        ensurePolyCapacity(path.polyCount);
+        ensureCornerCapacity(path.cornerCount);
+        System.arraycopy(path.polys, 0, polys, 0, path.polyCount);
+        System.arraycopy(path.straightPath, 0, straightPath, 0, path.cornerCount * 3);
+        System.arraycopy(path.straightPathFlags, 0, straightPathFlags, 0, path.cornerCount);
+        System.arraycopy(path.straightPathRefs, 0, straightPathRefs, 0, path.cornerCount);
+        polyCount = path.polyCount;
+        cornerCount = path.cornerCount;
+        cursor = path.cursor;
+        status = path.status;
+    }
+
+    /**
+     * @return The polygons of the path corridor, valid up to getPolyCount().
+     */
+    public long[] getPolys() {
+        return polys;
+    }
+
+    public int getPolyCount() {
+        return polyCount;
+    }
+
+    /**
+     * @return The corner points of the path packed as x, y, z, valid up to
+     *         getCornerCount() * 3.
+     */
+    public float[] getStraightPath() {
+        return straightPath;
+    }
+
+    public int getCornerCount() {
+        return cornerCount;
+    }
+
+    /**
+     * @param i     The index of the corner.
+     * @param store Holds the corner point.
+     * @return store
+     */
+    public Vector3f getCorner(int i, Vector3f store) {
+        return store.set(straightPath[i * 3], straightPath[i * 3 + 1], straightPath[i * 3 + 2]);
+    }
+
+    /**
+     * @param i The index of the corner.
+     * @return The NavMeshQuery.DT_STRAIGHTPATH flags of the corner.
+     */
+    public int getCornerFlags(int i) {
+        return straightPathFlags[i];
+    }
+
+    /**
+     * @param i The index of the corner.
+     * @return The polygon the path enters at the corner.
+     */
+    public long getCornerRef(int i) {
+        return straightPathRefs[i];
+    }
+
+    /**
+     * Visits the corners of the path, in order.
+     * 
+     * @param visitor
+     */
+    public void forEachCorner(CornerVisitor visitor) {
+        for (int i = 0; i < cornerCount; i++) {
+            visitor.visit(i, straightPath[i * 3], straightPath[i * 3 + 1], straightPath[i * 3 + 2], straightPathFlags[i], straightPathRefs[i]);
+        }
+    }
+
+    /**
+     * Copies the polygons of a corridor into the polygon buffer.
+     */
+    protected void setPolys(List<Long> corridor) {
+        int n = corridor.size();
+        ensurePolyCapacity(n);
+        for (int i = 0; i < n; i++) {
+            polys[i] = corridor.get(i);
+        }
+        polyCount = n;
+    }
+
+    /**
+     * Copies the corners of a straight path into the corner buffers and
+     * moves the cursor to the first one.
+     */
+    protected void setCorners(List<StraightPathItem> corners) {
+        int n = corners.size();
+        ensureCornerCapacity(n);
+        for (int i = 0; i < n; i++) {
+            StraightPathItem item = corners.get(i);
+            System.arraycopy(item.getPos(), 0, straightPath, i * 3, 3);
+            straightPathFlags[i] = item.getFlags();
+            straightPathRefs[i] = item.getRef();
+        }
+        cornerCount = n;
+        cursor = 0;
+    }
+
+    private void ensurePolyCapacity(int n) {
+        if (polys.length < n) {
+            polys = new long[Math.max(n, polys.length * 2)];
+        }
+    }
+
+    private void ensureCornerCapacity(int n) {
+        if (straightPathFlags.length < n) {
+            int capacity = Math.max(n, straightPathFlags.length * 2);
+            straightPath = new float[capacity * 3];
+            straightPathFlags = new int[capacity];
+            straightPathRefs = new long[capacity];
+        }
+    }
+
+    /**
+     * @return The index of the next waypoint.
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
     protected boolean isAtGoalWaypoint() {
-        return this.nextWaypoint == waypointList.getLast();
+        return cursor == cornerCount - 1;
     }
 
     protected void goToNextWaypoint() {
-        int index = waypointList.indexOf(nextWaypoint);
-        nextWaypoint = waypointList.get(index + 1);
+        if (cursor < cornerCount - 1) {
+            cursor++;
+        }
     }
 
-    protected Vector3f getNextWaypoint() {
-        return nextWaypoint;
+    /**
+     * getNextWaypoint will return always the same waypoint until we manually
+     * advance to the next.
+     * 
+     * @param store Holds the next waypoint.
+     * @return False if the path has no corners.
+     */
+    protected boolean getNextWaypoint(Vector3f store) {
+        if (cursor >= cornerCount) {
+            return false;
+        }
+        getCorner(cursor, store);
+        return true;
     }
 
 }
@@ -0,0 +1,167 @@
+package com.jme3.recast4j.ai;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.recast4j.detour.NavMesh;
+import org.recast4j.detour.NavMeshQuery;
+
+import com.jme3.math.Vector3f;
+import com.jme3.recast4j.Detour.VersionedNavMesh;
+
+/**
+ * Runs the path, raycast and sample queries of any number of agents on a
+ * fixed pool of threads.
+ * <p>
+ * Each worker thread owns one NavMeshTool, and so one NavMeshQuery and node
+ * pool, so memory and thread count scale with the size of the pool instead of
+ * the number of agents. The requests can be sent from any thread; the input
+ * vectors are copied when the request is submitted and the output objects are
+ * written on a worker thread, before the returned future completes.
+ * <p>
+ * With a VersionedNavMesh each request pins the current version of the
+ * NavMesh, so the tiles can be rebuilt while the queries run.
+ *
+ * <pre>
+ * NavMeshQueryService service = new NavMeshQueryService(navMesh, 4);
+ * NavMeshAgent agent = new NavMeshAgent(service, app);
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class NavMeshQueryService {
+
+    private static final AtomicInteger SERVICE_COUNT = new AtomicInteger();
+
+    private final VersionedNavMesh versionedNavMesh;
+    private final ExecutorService executor;
+    private final int threads;
+
+    // NavMesh: the tool of each worker.
+    private final ThreadLocal<NavMeshTool> tools;
+    // VersionedNavMesh: the tools of each worker, one per NavMeshQuery of the
+    // versions it has pinned.
+    private final ThreadLocal<Map<NavMeshQuery, NavMeshTool>> versionedTools = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    /**
+     * For a NavMesh that is not modified while the service runs.
+     *
+     * @param navMesh
+     * @param threads The number of worker threads.
+     */
+    public NavMeshQueryService(NavMesh navMesh, int threads) {
+        this(navMesh, null, threads);
+    }
+
+    /**
+     * For a NavMesh rebuilt in the background.
+     *
+     * @param navMesh
+     * @param threads The number of worker threads.
+     */
+    public NavMeshQueryService(VersionedNavMesh navMesh, int threads) {
+        this(null, navMesh, threads);
+    }
+
+    private NavMeshQueryService(NavMesh navMesh, VersionedNavMesh versionedNavMesh, int threads) {
+        this.versionedNavMesh = versionedNavMesh;
+        this.threads = threads;
+        this.tools = ThreadLocal.withInitial(() -> new NavMeshTool(navMesh));
+
+        int id = SERVICE_COUNT.incrementAndGet();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "NavMeshQuery-" + id + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Calculate a path between two points and store the resulting path.
+     *
+     * @param startPosition The initial position of the path requested.
+     * @param endPosition   The final position of the path requested.
+     * @param filter
+     * @param path          The resulting path, written by a worker thread.
+     * @return True if a path is found.
+     */
+    public CompletableFuture<Boolean> computePath(Vector3f startPosition, Vector3f endPosition, NavMeshQueryFilter filter, NavMeshPath path) {
+        Vector3f start = startPosition.clone();
+        Vector3f end = endPosition.clone();
+        return submit(tool -> tool.computePath(start, end, filter, path));
+    }
+
+    /**
+     * Finds a random point on the NavMesh within the specified range.
+     *
+     * @param center The origin of the sample query.
+     * @param range  Sample within this distance from center.
+     * @param filter
+     * @param result Holds the resulting location, written by a worker thread.
+     * @return True if a point is found.
+     */
+    public CompletableFuture<Boolean> randomPoint(Vector3f center, float range, NavMeshQueryFilter filter, Vector3f result) {
+        Vector3f origin = center.clone();
+        return submit(tool -> tool.randomPoint(origin, range, result, filter));
+    }
+
+    /**
+     * Trace a line between two points on the NavMesh.
+     *
+     * @param sourcePos The origin of the ray.
+     * @param targetPos The end of the ray.
+     * @param filter
+     * @param out       Holds the properties of the ray cast, written by a worker thread.
+     * @return True if the ray is terminated before reaching target position.
+     */
+    public CompletableFuture<Boolean> raycast(Vector3f sourcePos, Vector3f targetPos, NavMeshQueryFilter filter, NavMeshHit out) {
+        Vector3f source = sourcePos.clone();
+        Vector3f target = targetPos.clone();
+        return submit(tool -> tool.raycast(source, target, out, filter));
+    }
+
+    /**
+     * Runs a task with the NavMeshTool of a worker thread.
+     *
+     * @param task
+     * @return
+     */
+    public <T> CompletableFuture<T> submit(Function<NavMeshTool, T> task) {
+        return CompletableFuture.supplyAsync(() -> query(task), executor);
+    }
+
+    /**
+     * Runs a task on the calling thread, with a NavMeshTool owned by that
+     * thread. For the short queries that must complete in the current frame.
+     *
+     * @param task
+     * @return
+     */
+    public <T> T query(Function<NavMeshTool, T> task) {
+        if (versionedNavMesh == null) {
+            return task.apply(tools.get());
+        }
+        try (VersionedNavMesh.Snapshot snapshot = versionedNavMesh.acquire()) {
+            NavMeshTool tool = versionedTools.get().computeIfAbsent(snapshot.getQuery(), NavMeshTool::new);
+            return task.apply(tool);
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Stops the worker threads once the pending requests are done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
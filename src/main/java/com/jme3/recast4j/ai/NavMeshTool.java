@@ -3,6 +3,7 @@ package com.jme3.recast4j.ai;
 import java.util.Arrays;
 import java.util.List;
 
+import org.recast4j.detour.ClosestPointOnPolyResult;
 import org.recast4j.detour.DetourCommon;
 import org.recast4j.detour.FindNearestPolyResult;
 import org.recast4j.detour.FindRandomPointResult;
@@ -26,7 +27,9 @@ public class NavMeshTool {
     private final static int MAX_POLYS = 256;
 
     private NavMeshQuery navQuery;
-    private List<StraightPathItem> m_straightPath;
+    // Reused to convert the positions to Recast4j native format.
+    private final float[] m_spos = new float[3];
+    private final float[] m_epos = new float[3];
 
     /**
      * @param navMesh
@@ -35,6 +38,13 @@ public class NavMeshTool {
     	navQuery = new NavMeshQuery(navMesh);
     }
 
+    /**
+     * @param navQuery The query to use, owned by the calling thread.
+     */
+    public NavMeshTool(NavMeshQuery navQuery) {
+        this.navQuery = navQuery;
+    }
+
     /**
      * Calculate a path between two points and store the resulting path.
      * 
@@ -45,62 +55,106 @@ public class NavMeshTool {
      */
     public boolean computePath(Vector3f startPosition, Vector3f endPosition, NavMeshQueryFilter m_filter, NavMeshPath path) {
 
-    	path.clearCorners();
-
         // Convert to Recast4j native format.
-        float[] m_spos = startPosition.toArray(null);
-        float[] m_epos = endPosition.toArray(null);
-
-        boolean result = computePath(m_spos, m_epos, m_filter);
-        path.status = result ? NavMeshPathStatus.PathComplete : NavMeshPathStatus.PathInvalid;
-
-        if (result) {
-            // Add waypoints to the list
-            for (StraightPathItem p : m_straightPath) {
-                Vector3f vector = DetourUtils.toVector3f(p.getPos());
-                path.waypointList.add(vector);
-            }
-
-            path.nextWaypoint = path.waypointList.getFirst();
-        }
+        startPosition.toArray(m_spos);
+        endPosition.toArray(m_epos);
 
-        return result;
+        return computePath(m_spos, m_epos, m_filter, path);
     }
 
-    protected boolean computePath(float[] m_spos, float[] m_epos, NavMeshQueryFilter m_filter) {
+    /**
+     * Calculate a path between two points and store the polygons and the
+     * corners of the path in the buffers of the path, which are reused.
+     * <p>
+     * Nothing is allocated on this side of the call; NavMeshQuery still
+     * returns its results as Result and List objects.
+     * 
+     * @param spos The initial position of the path requested.
+     * @param epos The final position of the path requested.
+     * @param path The resulting path.
+     * @return True if either a complete or partial path is found. False otherwise.
+     */
+    public boolean computePath(float[] spos, float[] epos, NavMeshQueryFilter m_filter, NavMeshPath path) {
+
+        path.clearCorners();
+        path.status = NavMeshPathStatus.PathInvalid;
 
-        boolean foundPath = false;
-        
         float[] m_polyPickExt = m_filter.m_polyExtents;
-        int m_straightPathOptions = m_filter.m_straightPathOptions.getValue();
 
         //Get closet poly for start position.
-        Result<FindNearestPolyResult> startPoly = navQuery.findNearestPoly(m_spos, m_polyPickExt, m_filter);
+        Result<FindNearestPolyResult> startPoly = navQuery.findNearestPoly(spos, m_polyPickExt, m_filter);
         //Get the closest poly for end position.
-        Result<FindNearestPolyResult> endPoly = navQuery.findNearestPoly(m_epos, m_polyPickExt, m_filter);
+        Result<FindNearestPolyResult> endPoly = navQuery.findNearestPoly(epos, m_polyPickExt, m_filter);
 
         //Get the references for the found polygons.
         long m_startRef = startPoly.result.getNearestRef();
         long m_endRef = endPoly.result.getNearestRef();
 
+        if (m_startRef == 0 || m_endRef == 0) {
+            return false;
+        }
+
         //Get the points inside the polygon.
         float[] startPos = startPoly.result.getNearestPos();
         float[] endPos = endPoly.result.getNearestPos();
 
-        if (m_startRef != 0 && m_endRef != 0) {
-            // Get list of polys along the path.
-            Result<List<Long>> m_polys = navQuery.findPath(m_startRef, m_endRef, startPos, endPos, m_filter);
+        // Get list of polys along the path.
+        Result<List<Long>> m_polys = navQuery.findPath(m_startRef, m_endRef, startPos, endPos, m_filter);
 
-            if (m_polys.succeeded()) {
-                // Calculate corners within the path corridor.
-                m_straightPath = navQuery.findStraightPath(startPos, endPos, m_polys.result, MAX_POLYS, m_straightPathOptions).result;
-                foundPath = true;
+        if (m_polys.failed() || m_polys.result.isEmpty()) {
+            return false;
+        }
+
+        // A partial path ends at the point of its last polygon closest to
+        // the requested end, as in PathRequestQueue.
+        long lastRef = m_polys.result.get(m_polys.result.size() - 1);
+        boolean complete = lastRef == m_endRef;
+        if (!complete) {
+            Result<ClosestPointOnPolyResult> closest = navQuery.closestPointOnPoly(lastRef, epos);
+            if (closest.failed()) {
+                return false;
             }
-        } else {
-            m_straightPath = null;
+            endPos = closest.result.getClosest();
         }
 
-        return foundPath;
+        if (!computeStraightPath(startPos, endPos, m_polys.result, m_filter, path)) {
+            return false;
+        }
+
+        path.status = complete ? NavMeshPathStatus.PathComplete : NavMeshPathStatus.PathPartial;
+        return true;
+    }
+
+    /**
+     * Calculate the corners of a path corridor and store them in the path.
+     * 
+     * @param startPos The start position, inside the first polygon.
+     * @param endPos   The end position, inside the last polygon.
+     * @param polys    The polygons of the corridor.
+     * @param path     The resulting path.
+     * @return True if the corners are found.
+     */
+    protected boolean computeStraightPath(float[] startPos, float[] endPos, List<Long> polys, NavMeshQueryFilter m_filter, NavMeshPath path) {
+
+        path.clearCorners();
+
+        int m_straightPathOptions = m_filter.m_straightPathOptions.getValue();
+        Result<List<StraightPathItem>> straightPath = navQuery.findStraightPath(startPos, endPos, polys, MAX_POLYS, m_straightPathOptions);
+
+        if (straightPath.failed() || straightPath.result.isEmpty()) {
+            return false;
+        }
+
+        path.setPolys(polys);
+        path.setCorners(straightPath.result);
+        return true;
+    }
+
+    /**
+     * @return The query used by this tool.
+     */
+    protected NavMeshQuery getNavMeshQuery() {
+        return navQuery;
     }
     
     /**
@@ -0,0 +1,477 @@
+package com.jme3.recast4j.ai;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.recast4j.detour.ClosestPointOnPolyResult;
+import org.recast4j.detour.FindNearestPolyResult;
+import org.recast4j.detour.NavMesh;
+import org.recast4j.detour.NavMeshQuery;
+import org.recast4j.detour.Result;
+import org.recast4j.detour.Status;
+
+import com.jme3.app.Application;
+import com.jme3.app.state.BaseAppState;
+import com.jme3.math.Vector3f;
+import com.jme3.recast4j.Detour.VersionedNavMesh;
+
+/**
+ * Computes the paths of any number of agents on the render thread, within a
+ * fixed number of A* iterations per frame.
+ * <p>
+ * The requests are served by priority, lowest value first, using the sliced
+ * path finding of NavMeshQuery. The priority of a waiting request decreases
+ * with time (aging), so long requests are delayed by the short ones but never
+ * starved: a search that does not fit in the budget of
+ * a frame continues on the next one, and a search that exceeds the iterations
+ * allowed per request ends with a partial path. The worst case cost of a
+ * frame does not depend on the number of agents, only the latency does.
+ * <p>
+ * A new request from an owner that already has one pending replaces it and
+ * returns the same future, so agents changing target before their path is
+ * ready don't queue up searches. The futures complete on the render thread,
+ * during the update of this state, with a path that may be invalid; they are
+ * never completed exceptionally, but are cancelled when the state is detached.
+ * <p>
+ * With a VersionedNavMesh each frame pins the current version; a search
+ * started on an older version is restarted. The iterations spent before the
+ * restart still count towards the limit of the request, so a long search on a
+ * NavMesh changing every frame still ends, with a partial path.
+ * <p>
+ * The path of a request can be supplied by its owner and is then filled in
+ * place, so an agent reuses the same buffers for all its paths.
+ * <p>
+ * Requests must be sent from the update loop.
+ *
+ * <pre>
+ * PathRequestQueue pathQueue = new PathRequestQueue(navMesh);
+ * stateManager.attach(pathQueue);
+ * character.addControl(new NavMeshAgent(pathQueue, app));
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class PathRequestQueue extends BaseAppState {
+
+    private static class PathRequest {
+        final Object owner;
+        final CompletableFuture<NavMeshPath> future = new CompletableFuture<>();
+        final float[] startPos = new float[3];
+        final float[] endPos = new float[3];
+        NavMeshQueryFilter filter;
+        float priority;
+        // Priority plus the aging rate times the time of the request. All the
+        // requests age at the same rate, so the order by key is the order by
+        // priority minus waiting time, and never changes while queued.
+        double key;
+        long sequence;
+
+        // Search state, valid while version matches the NavMesh version.
+        long version = -1;
+        long startRef;
+        long endRef;
+        float[] nearestStart;
+        float[] nearestEnd;
+        int iterations;
+        // The result, supplied by the owner or created with the request.
+        NavMeshPath path;
+
+        PathRequest(Object owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * The queries of one NavMesh instance: one for the sliced searches and
+     * one for the synchronous queries, which would reset the sliced search.
+     */
+    private static class Worker {
+        final NavMeshTool slicedTool;
+        final NavMeshTool tool;
+
+        Worker(NavMesh navMesh) {
+            this.slicedTool = new NavMeshTool(navMesh);
+            this.tool = new NavMeshTool(navMesh);
+        }
+    }
+
+    private final NavMesh navMesh;
+    private final VersionedNavMesh versionedNavMesh;
+    private final Map<NavMesh, Worker> workers = new IdentityHashMap<>();
+
+    private final PriorityQueue<PathRequest> queue = new PriorityQueue<>(
+            Comparator.<PathRequest>comparingDouble(r -> r.key).thenComparingLong(r -> r.sequence));
+    private final Map<Object, PathRequest> pending = new HashMap<>();
+    private final List<PathRequest> done = new ArrayList<>();
+    private PathRequest active;
+    private long sequence;
+    // Seconds since the state was attached.
+    private double time;
+
+    private int maxIterationsPerFrame = 2000;
+    private int maxIterationsPerRequest = 4000;
+    private float agingRate = 10f;
+
+    /**
+     * For a NavMesh that is not modified while the queue runs.
+     *
+     * @param navMesh
+     */
+    public PathRequestQueue(NavMesh navMesh) {
+        this.navMesh = navMesh;
+        this.versionedNavMesh = null;
+    }
+
+    /**
+     * For a NavMesh rebuilt in the background.
+     *
+     * @param navMesh
+     */
+    public PathRequestQueue(VersionedNavMesh navMesh) {
+        this.navMesh = null;
+        this.versionedNavMesh = navMesh;
+    }
+
+    @Override
+    protected void initialize(Application app) {
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        if (active != null) {
+            active.future.cancel(false);
+            active = null;
+        }
+        for (PathRequest request : queue) {
+            request.future.cancel(false);
+        }
+        queue.clear();
+        pending.clear();
+        workers.clear();
+    }
+
+    @Override
+    protected void onEnable() {
+    }
+
+    @Override
+    protected void onDisable() {
+    }
+
+    /**
+     * Request a path between two points, prioritized by its straight line
+     * length so that short paths are not delayed by long ones.
+     *
+     * @param owner  The agent requesting the path, or null to never coalesce
+     *               the request.
+     * @param start  The initial position of the path requested.
+     * @param end    The final position of the path requested.
+     * @param filter
+     * @return The resulting path.
+     */
+    public CompletableFuture<NavMeshPath> request(Object owner, Vector3f start, Vector3f end, NavMeshQueryFilter filter) {
+        return request(owner, start, end, filter, start.distance(end), null);
+    }
+
+    /**
+     * Request a path between two points, prioritized by its straight line
+     * length, filling the supplied path.
+     *
+     * @param owner  The agent requesting the path, or null to never coalesce
+     *               the request.
+     * @param start  The initial position of the path requested.
+     * @param end    The final position of the path requested.
+     * @param filter
+     * @param path   Receives the result. It must not be used until the future
+     *               completes.
+     * @return The future of the path.
+     */
+    public CompletableFuture<NavMeshPath> request(Object owner, Vector3f start, Vector3f end, NavMeshQueryFilter filter, NavMeshPath path) {
+        return request(owner, start, end, filter, start.distance(end), path);
+    }
+
+    /**
+     * Request a path between two points.
+     *
+     * @param owner    The agent requesting the path, or null to never coalesce
+     *                 the request.
+     * @param start    The initial position of the path requested.
+     * @param end      The final position of the path requested.
+     * @param filter
+     * @param priority Requests with lower values are served first. Each
+     *                 second of waiting lowers it by the aging rate.
+     * @return The resulting path. The same future as the pending request of the
+     *         owner, if any.
+     */
+    public CompletableFuture<NavMeshPath> request(Object owner, Vector3f start, Vector3f end, NavMeshQueryFilter filter, float priority) {
+        return request(owner, start, end, filter, priority, null);
+    }
+
+    /**
+     * Request a path between two points, filling the supplied path.
+     *
+     * @param owner    The agent requesting the path, or null to never coalesce
+     *                 the request.
+     * @param start    The initial position of the path requested.
+     * @param end      The final position of the path requested.
+     * @param filter
+     * @param priority Requests with lower values are served first. Each
+     *                 second of waiting lowers it by the aging rate.
+     * @param path     Receives the result, or null for a new path. It must not
+     *                 be used until the future completes.
+     * @return The future of the path. The same future as the pending request
+     *         of the owner, if any.
+     */
+    public CompletableFuture<NavMeshPath> request(Object owner, Vector3f start, Vector3f end, NavMeshQueryFilter filter, float priority, NavMeshPath path) {
+        PathRequest request = owner != null ? pending.get(owner) : null;
+        if (request == null) {
+            request = new PathRequest(owner);
+            if (owner != null) {
+                pending.put(owner, request);
+            }
+        } else if (request == active) {
+            active = null;
+        } else {
+            queue.remove(request);
+        }
+
+        start.toArray(request.startPos);
+        end.toArray(request.endPos);
+        request.filter = filter;
+        request.priority = priority;
+        request.key = priority + agingRate * time;
+        request.sequence = sequence++;
+        request.version = -1;
+        request.iterations = 0;
+        if (path != null) {
+            request.path = path;
+        } else if (request.path == null) {
+            request.path = new NavMeshPath();
+        }
+        queue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Cancels the pending request of an owner.
+     *
+     * @param owner
+     * @return True if a request was pending.
+     */
+    public boolean cancel(Object owner) {
+        PathRequest request = pending.remove(owner);
+        if (request == null) {
+            return false;
+        }
+        if (request == active) {
+            active = null;
+        } else {
+            queue.remove(request);
+        }
+        request.future.cancel(false);
+        return true;
+    }
+
+    /**
+     * Runs a synchronous query on the current version of the NavMesh, with a
+     * NavMeshTool that is not used by the queued searches.
+     *
+     * @param task
+     * @return
+     */
+    public <T> T query(Function<NavMeshTool, T> task) {
+        if (versionedNavMesh == null) {
+            return task.apply(getWorker(navMesh).tool);
+        }
+        try (VersionedNavMesh.Snapshot snapshot = versionedNavMesh.acquire()) {
+            return task.apply(getWorker(snapshot.getNavMesh()).tool);
+        }
+    }
+
+    @Override
+    public void update(float tpf) {
+        time += tpf;
+        if (active == null && queue.isEmpty()) {
+            return;
+        }
+        if (versionedNavMesh == null) {
+            process(navMesh, 0);
+            return;
+        }
+        try (VersionedNavMesh.Snapshot snapshot = versionedNavMesh.acquire()) {
+            process(snapshot.getNavMesh(), snapshot.getVersion());
+        }
+    }
+
+    private void process(NavMesh navMesh, long version) {
+        Worker worker = getWorker(navMesh);
+        NavMeshQuery query = worker.slicedTool.getNavMeshQuery();
+
+        int budget = maxIterationsPerFrame;
+        while (budget > 0) {
+            if (active == null) {
+                active = queue.poll();
+                if (active == null) {
+                    break;
+                }
+            }
+
+            // Finding the nearest polygons is counted as one iteration. A
+            // restarted search keeps the iterations already spent.
+            if (active.version != version) {
+                budget--;
+                if (!begin(query, active, version)) {
+                    done.add(active);
+                    active = null;
+                    continue;
+                }
+            }
+
+            int maxIter = Math.max(1, Math.min(budget, maxIterationsPerRequest - active.iterations));
+            Result<Integer> result = query.updateSlicedFindPath(maxIter);
+            int iterations = Math.max(1, result.result);
+            active.iterations += iterations;
+            budget -= iterations;
+
+            if (!result.status.isInProgress() || active.iterations >= maxIterationsPerRequest) {
+                finish(worker.slicedTool, active);
+                done.add(active);
+                active = null;
+            }
+        }
+
+        // Complete the futures once the queue is consistent, their callbacks
+        // may send new requests.
+        for (PathRequest request : done) {
+            if (request.owner != null) {
+                pending.remove(request.owner);
+            }
+        }
+        for (PathRequest request : done) {
+            request.future.complete(request.path);
+        }
+        done.clear();
+    }
+
+    private boolean begin(NavMeshQuery query, PathRequest request, long version) {
+        request.version = version;
+
+        float[] extents = request.filter.m_polyExtents;
+        Result<FindNearestPolyResult> startPoly = query.findNearestPoly(request.startPos, extents, request.filter);
+        Result<FindNearestPolyResult> endPoly = query.findNearestPoly(request.endPos, extents, request.filter);
+        request.startRef = startPoly.succeeded() ? startPoly.result.getNearestRef() : 0;
+        request.endRef = endPoly.succeeded() ? endPoly.result.getNearestRef() : 0;
+
+        if (request.startRef == 0 || request.endRef == 0) {
+            invalidate(request.path);
+            return false;
+        }
+        request.nearestStart = startPoly.result.getNearestPos();
+        request.nearestEnd = endPoly.result.getNearestPos();
+
+        Status status = query.initSlicedFindPath(request.startRef, request.endRef, request.nearestStart, request.nearestEnd, request.filter, 0);
+        if (status.isFailed()) {
+            invalidate(request.path);
+            return false;
+        }
+        return true;
+    }
+
+    private void finish(NavMeshTool tool, PathRequest request) {
+        NavMeshQuery query = tool.getNavMeshQuery();
+        Result<List<Long>> polys = query.finalizeSlicedFindPath();
+        if (polys.failed() || polys.result.isEmpty()) {
+            invalidate(request.path);
+            return;
+        }
+
+        // A partial path ends at the point of its last polygon closest to
+        // the requested end.
+        long lastRef = polys.result.get(polys.result.size() - 1);
+        float[] endPos = request.nearestEnd;
+        boolean complete = lastRef == request.endRef;
+        if (!complete) {
+            Result<ClosestPointOnPolyResult> closest = query.closestPointOnPoly(lastRef, request.endPos);
+            if (closest.failed()) {
+                invalidate(request.path);
+                return;
+            }
+            endPos = closest.result.getClosest();
+        }
+
+        NavMeshPath path = request.path;
+        if (tool.computeStraightPath(request.nearestStart, endPos, polys.result, request.filter, path)) {
+            path.status = complete ? NavMeshPathStatus.PathComplete : NavMeshPathStatus.PathPartial;
+        } else {
+            path.status = NavMeshPathStatus.PathInvalid;
+        }
+    }
+
+    private void invalidate(NavMeshPath path) {
+        path.clearCorners();
+        path.status = NavMeshPathStatus.PathInvalid;
+    }
+
+    private Worker getWorker(NavMesh navMesh) {
+        return workers.computeIfAbsent(navMesh, Worker::new);
+    }
+
+    /**
+     * The number of requests waiting to be served, including the one in
+     * progress.
+     */
+    public int getQueueSize() {
+        return queue.size() + (active != null ? 1 : 0);
+    }
+
+    public int getMaxIterationsPerFrame() {
+        return maxIterationsPerFrame;
+    }
+
+    /**
+     * The A* iterations spent by all the requests in a frame. Default: 2000
+     *
+     * @param maxIterationsPerFrame
+     */
+    public void setMaxIterationsPerFrame(int maxIterationsPerFrame) {
+        this.maxIterationsPerFrame = Math.max(1, maxIterationsPerFrame);
+    }
+
+    public int getMaxIterationsPerRequest() {
+        return maxIterationsPerRequest;
+    }
+
+    /**
+     * The A* iterations after which a request ends with a partial path.
+     * Default: 4000
+     *
+     * @param maxIterationsPerRequest
+     */
+    public void setMaxIterationsPerRequest(int maxIterationsPerRequest) {
+        this.maxIterationsPerRequest = Math.max(1, maxIterationsPerRequest);
+    }
+
+    public float getAgingRate() {
+        return agingRate;
+    }
+
+    /**
+     * How much the priority of a waiting request decreases per second. With
+     * the default priority, the straight line length of the path, a request
+     * waiting 1 second goes before the requests up to 10 units shorter sent after
+     * it. Applies to the requests sent afterwards. Default: 10
+     *
+     * @param agingRate
+     */
+    public void setAgingRate(float agingRate) {
+        this.agingRate = Math.max(0, agingRate);
+    }
+
+}
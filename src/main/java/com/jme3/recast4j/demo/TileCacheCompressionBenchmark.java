@@ -0,0 +1,243 @@
+package com.jme3.recast4j.demo;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.recast4j.detour.NavMesh;
+import org.recast4j.detour.NavMeshParams;
+import org.recast4j.detour.tilecache.TileCache;
+import org.recast4j.detour.tilecache.TileCacheParams;
+import org.recast4j.detour.tilecache.TileCacheStorageParams;
+import org.recast4j.recast.RecastConfig;
+import org.recast4j.recast.RecastConstants;
+
+import com.jme3.recast4j.Detour.TileCache.LzTileCacheCompressor;
+import com.jme3.recast4j.Detour.TileCache.TileCacheCompression;
+import com.jme3.recast4j.Recast.RecastConfigBuilder;
+import com.jme3.recast4j.geom.GeomSnapshot;
+import com.jme3.recast4j.geom.JmeInputGeomProvider;
+import com.jme3.recast4j.geom.JmeTileLayerBuilder;
+import com.jme3.recast4j.geom.JmeTileLayerBuilder.TileLayerStats;
+
+/**
+ * Compares the tile cache compressors: layer build time, memory held by the
+ * compressed layers and the latency of the tile rebuilds caused by adding and
+ * removing an obstacle, which decompress and recompress the affected layers.
+ * <p>
+ * Runs headless. The first argument is an optional geometry snapshot (see
+ * GeomSnapshot), otherwise a generated rolling terrain is used. Before
+ * measuring, the LzTileCacheCompressor is checked on the inputs that exercise
+ * the edges of its format.
+ *
+ * <pre>
+ * java com.jme3.recast4j.demo.TileCacheCompressionBenchmark nm-generated/dune.geom
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class TileCacheCompressionBenchmark {
+
+    private static final int OBSTACLES = 200;
+    private static final int WARMUP_ROUNDS = 2;
+
+    /**
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        checkLzRoundTrip();
+
+        JmeInputGeomProvider geom = args.length > 0 ? GeomSnapshot.read(Paths.get(args[0])) : createTerrain(256);
+
+        RecastConfig cfg = new RecastConfigBuilder()
+                .withPartitionType(RecastConstants.PartitionType.MONOTONE)
+                .withAgentRadius(0.4f)
+                .withAgentHeight(1.7f)
+                .withCellSize(0.2f)
+                .withCellHeight(0.1f)
+                .withAgentMaxClimb(0.3f)
+                .withAgentMaxSlope(45f)
+                .withVertsPerPoly(6)
+                .withTileSize(48)
+                .build();
+
+        System.out.println(String.format("%-14s %10s %10s %8s %12s %12s %12s",
+                "compression", "build ms", "bytes", "ratio", "fill ms", "avg update", "p95 update"));
+
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            for (TileCacheCompression compression : TileCacheCompression.values()) {
+                String line = run(geom, cfg, compression);
+                if (round == WARMUP_ROUNDS) {
+                    System.out.println(line);
+                }
+            }
+        }
+    }
+
+    private static String run(JmeInputGeomProvider geom, RecastConfig cfg, TileCacheCompression compression) throws IOException {
+        boolean cCompatibility = compression == TileCacheCompression.C_COMPATIBLE;
+
+        // Build and compress the layers.
+        JmeTileLayerBuilder layerBuilder = new JmeTileLayerBuilder(geom, cfg);
+        layerBuilder.setCompression(compression);
+        long start = System.nanoTime();
+        List<byte[]> layers = layerBuilder.build(ByteOrder.BIG_ENDIAN, cCompatibility, 1);
+        float buildMillis = (System.nanoTime() - start) / 1e6f;
+
+        long rawBytes = 0;
+        for (TileLayerStats stats : layerBuilder.getTileStats()) {
+            rawBytes += stats.rawBytes;
+        }
+        long bytes = 0;
+        for (byte[] data : layers) {
+            bytes += data.length;
+        }
+
+        // Decompress every layer once to build the NavMesh.
+        TileCache tc = createTileCache(geom, cfg, layerBuilder, compression, cCompatibility);
+        start = System.nanoTime();
+        for (byte[] data : layers) {
+            long ref = tc.addTile(data, 0);
+            tc.buildNavMeshTile(ref);
+        }
+        float fillMillis = (System.nanoTime() - start) / 1e6f;
+
+        // Each obstacle rebuilds the tiles it touches twice, on add and on remove.
+        Random random = new Random(42);
+        float[] bmin = geom.getMeshBoundsMin();
+        float[] bmax = geom.getMeshBoundsMax();
+        long[] latency = new long[OBSTACLES];
+        for (int i = 0; i < OBSTACLES; i++) {
+            float[] pos = {
+                bmin[0] + random.nextFloat() * (bmax[0] - bmin[0]),
+                bmin[1],
+                bmin[2] + random.nextFloat() * (bmax[2] - bmin[2])
+            };
+            start = System.nanoTime();
+            long ref = tc.addObstacle(pos, 1f, bmax[1] - bmin[1] + 2f);
+            while (!tc.update()) {
+            }
+            tc.removeObstacle(ref);
+            while (!tc.update()) {
+            }
+            latency[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latency);
+        float avg = (float) (Arrays.stream(latency).average().orElse(0) / 1e6);
+        float p95 = latency[(int) (OBSTACLES * 0.95f)] / 1e6f;
+
+        return String.format("%-14s %10.1f %10d %8.2f %12.1f %10.3fms %10.3fms",
+                compression, buildMillis, bytes, bytes > 0 ? (float) rawBytes / bytes : 0, fillMillis, avg, p95);
+    }
+
+    private static TileCache createTileCache(JmeInputGeomProvider geom, RecastConfig cfg, JmeTileLayerBuilder layerBuilder,
+            TileCacheCompression compression, boolean cCompatibility) {
+        final int EXPECTED_LAYERS_PER_TILE = 4;
+
+        TileCacheParams params = new TileCacheParams();
+        params.cs = cfg.cs;
+        params.ch = cfg.ch;
+        System.arraycopy(geom.getMeshBoundsMin(), 0, params.orig, 0, 3);
+        params.width = cfg.tileSize;
+        params.height = cfg.tileSize;
+        params.walkableHeight = cfg.walkableHeight * cfg.ch;
+        params.walkableRadius = cfg.walkableRadius * cfg.cs;
+        params.walkableClimb = cfg.walkableClimb * cfg.ch;
+        params.maxSimplificationError = cfg.maxSimplificationError;
+        params.maxTiles = layerBuilder.getTw() * layerBuilder.getTh() * EXPECTED_LAYERS_PER_TILE;
+        params.maxObstacles = 128;
+
+        NavMeshParams navMeshParams = new NavMeshParams();
+        System.arraycopy(geom.getMeshBoundsMin(), 0, navMeshParams.orig, 0, 3);
+        navMeshParams.tileWidth = cfg.tileSize * cfg.cs;
+        navMeshParams.tileHeight = cfg.tileSize * cfg.cs;
+        navMeshParams.maxTiles = params.maxTiles;
+        navMeshParams.maxPolys = 16384;
+
+        NavMesh navMesh = new NavMesh(navMeshParams, cfg.maxVertsPerPoly);
+        return new TileCache(params, new TileCacheStorageParams(ByteOrder.BIG_ENDIAN, cCompatibility), navMesh,
+                compression.get(), p -> Arrays.fill(p.polyFlags, 1));
+    }
+
+    /**
+     * Compresses and decompresses with LzTileCacheCompressor the inputs that
+     * exercise the edges of its format: an empty input, inputs ending exactly
+     * on a match, overlapping matches (runs), long literal and match lengths,
+     * and incompressible data.
+     *
+     * @throws IllegalStateException if an input is not restored.
+     */
+    private static void checkLzRoundTrip() {
+        Random random = new Random(42);
+        byte[] noise = new byte[1000];
+        random.nextBytes(noise);
+
+        byte[] layer = new byte[48 * 48 * 3];
+        for (int i = 0; i < layer.length; i++) {
+            layer[i] = (byte) (i < 48 * 48 ? (i / 7) % 5 : i % 3);
+        }
+
+        byte[][] inputs = {
+            new byte[0],
+            "abc".getBytes(),
+            // Ends on a match, no last literals.
+            "abcdefghabcdefgh".getBytes(),
+            "xyzabcdabcd".getBytes(),
+            // Overlapping matches: the distance is shorter than the length.
+            new byte[300],
+            "abababababababababababab".getBytes(),
+            "q".concat("abc".repeat(100)).concat("z").getBytes(),
+            noise,
+            layer
+        };
+
+        LzTileCacheCompressor compressor = new LzTileCacheCompressor();
+        for (byte[] input : inputs) {
+            byte[] compressed = compressor.compress(input);
+            // Decompress from an offset, as TileCache does after the header.
+            byte[] framed = new byte[compressed.length + 5];
+            System.arraycopy(compressed, 0, framed, 5, compressed.length);
+            byte[] output = compressor.decompress(framed, 5, compressed.length, input.length);
+            if (!Arrays.equals(input, output)) {
+                throw new IllegalStateException("LzTileCacheCompressor round trip failed for " + input.length + " bytes");
+            }
+        }
+        System.out.println("LzTileCacheCompressor round trip: " + inputs.length + " inputs OK");
+    }
+
+    /**
+     * Creates a size x size rolling terrain with one quad per world unit.
+     */
+    private static JmeInputGeomProvider createTerrain(int size) {
+        float[] vertices = new float[(size + 1) * (size + 1) * 3];
+        int v = 0;
+        for (int z = 0; z <= size; z++) {
+            for (int x = 0; x <= size; x++) {
+                vertices[v++] = x;
+                vertices[v++] = (float) (2 * Math.sin(x * 0.1) * Math.cos(z * 0.13));
+                vertices[v++] = z;
+            }
+        }
+
+        int[] faces = new int[size * size * 6];
+        int f = 0;
+        for (int z = 0; z < size; z++) {
+            for (int x = 0; x < size; x++) {
+                int i = z * (size + 1) + x;
+                faces[f++] = i;
+                faces[f++] = i + size + 1;
+                faces[f++] = i + 1;
+                faces[f++] = i + 1;
+                faces[f++] = i + size + 1;
+                faces[f++] = i + size + 2;
+            }
+        }
+        return new JmeInputGeomProvider(vertices, faces);
+    }
+
+}
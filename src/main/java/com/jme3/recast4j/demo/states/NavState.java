@@ -81,7 +81,6 @@ import org.recast4j.detour.tilecache.TileCacheParams;
 import org.recast4j.detour.tilecache.TileCacheStorageParams;
 import org.recast4j.detour.tilecache.io.TileCacheReader;
 import org.recast4j.detour.tilecache.io.TileCacheWriter;
-import org.recast4j.detour.tilecache.io.compress.TileCacheCompressorFactory;
 import org.recast4j.recast.CompactHeightfield;
 import org.recast4j.recast.ContourSet;
 import org.recast4j.recast.Heightfield;
@@ -117,15 +116,20 @@ import com.jme3.math.Ray;
 import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.recast4j.Detour.DetourUtils;
+import com.jme3.recast4j.Detour.TileCache.TileCacheCompression;
+import com.jme3.recast4j.Detour.TileCache.TileCacheObstacleState;
+import com.jme3.recast4j.Detour.VersionedNavMesh;
 import com.jme3.recast4j.Recast.IORecast;
 import com.jme3.recast4j.Recast.RecastConfigBuilder;
+import com.jme3.recast4j.Recast.RecastConfigTuner;
 import com.jme3.recast4j.Recast.Telemetry;
 import com.jme3.recast4j.ai.NavMeshAgent;
 import com.jme3.recast4j.ai.NavMeshHit;
 import com.jme3.recast4j.ai.NavMeshPath;
 import com.jme3.recast4j.ai.NavMeshPathStatus;
 import com.jme3.recast4j.ai.NavMeshQueryFilter;
-import com.jme3.recast4j.ai.NavMeshTool;
+import com.jme3.recast4j.ai.NavMeshQueryService;
+import com.jme3.recast4j.ai.PathRequestQueue;
 import com.jme3.recast4j.ai.StraightPathOptions;
 import com.jme3.recast4j.demo.JmeAreaMods;
 import com.jme3.recast4j.demo.controls.DoorSwingControl;
@@ -164,6 +168,19 @@ public class NavState extends AbstractNavState {
     private NavMeshQuery navQuery;
     private List<Node> characters;
     private Map<String, OffMeshConnection> mapOffMeshCon;
+    //The compressor of the tile cache layers. FAST_LZ rebuilds the tiles
+    //faster, but the tile cache can then no longer be saved and read back.
+    private TileCacheCompression tileCacheCompression = TileCacheCompression.DEFAULT;
+    //Picks the tile size of the tile cache from a few sample tiles of the level
+    //instead of the fixed one. The result depends on the speed of the machine.
+    private boolean autoTuneTileSize = false;
+    private TileCacheObstacleState obstacleState;
+    private TileCacheObstacleState.TileListener tileListener;
+    //The obstacle dropped with the middle mouse button, 0 if none.
+    private long obstacleId;
+    private VersionedNavMesh.Snapshot navMeshSnapshot;
+    private NavMeshQueryService queryService;
+    private PathRequestQueue pathQueue;
     
     float agentRadius = 0.3f;
     float agentHeight = 1.7f;
@@ -219,6 +236,25 @@ public class NavState extends AbstractNavState {
                 character.removeControl(agent);
             }
         }
+        if (pathQueue != null) {
+            stateManager.detach(pathQueue);
+        }
+        if (queryService != null) {
+            queryService.shutdown();
+            queryService = null;
+        }
+        if (obstacleState != null) {
+            //Release the pinned version, then stop the worker thread.
+            obstacleState.removeListener(tileListener);
+            if (navMeshSnapshot != null) {
+                navMeshSnapshot.close();
+                navMeshSnapshot = null;
+            }
+            stateManager.detach(obstacleState);
+            obstacleState = null;
+            tileListener = null;
+            obstacleId = 0;
+        }
     }
 
     private void setupDoors() {
@@ -386,11 +422,7 @@ public class NavState extends AbstractNavState {
                     //If all flags match set door open/closed.
                     if (same) {
                         //Set all obj flags.
-                        for (PolyAndFlag obj : listPolyFlag) {
-                            navMesh.setPolyFlags(obj.poly, obj.flag);
-                            LOG.info("POST flag set Poly ID [{}] Flags [{}]", obj.poly, navMesh.getPolyFlags(obj.poly).result);
-                            printFlags(obj.poly);
-                        }
+                        setPolyFlags(findNearestPoly.result.getNearestPos(), maxXZ, listPolyFlag);
 
                         /**
                          * All flags are the same so we only 
@@ -410,6 +442,27 @@ public class NavState extends AbstractNavState {
         });
     }
 
+    /**
+     * Sets the flags of the door polys around the center. With dynamic
+     * obstacles the navMesh tiles are shared between versions and rebuilt by
+     * the obstacles, so the flags go to the obstacle state, which publishes
+     * them as a new version and keeps them on the rebuilt tiles.
+     */
+    private void setPolyFlags(float[] center, float radius, List<PolyAndFlag> listPolyFlag) {
+        if (obstacleState == null) {
+            for (PolyAndFlag obj : listPolyFlag) {
+                navMesh.setPolyFlags(obj.poly, obj.flag);
+                LOG.info("POST flag set Poly ID [{}] Flags [{}]", obj.poly, navMesh.getPolyFlags(obj.poly).result);
+                printFlags(obj.poly);
+            }
+            return;
+        }
+        //All the polys get the same flags.
+        int flags = listPolyFlag.get(0).flag;
+        obstacleState.setPolyFlags(new Vector3f(center[0], center[1], center[2]), radius, POLYFLAGS_DOOR, flags);
+        LOG.info("Door flags [{}] queued for the next navMesh version.", flags);
+    }
+
     private void initWorldMouseListener() {
     	
         if (getCharacters().size() > 1) {
@@ -419,7 +472,18 @@ public class NavState extends AbstractNavState {
     	
     	Node character = getCharacters().get(0);
     	character.addControl(new AnimationControl());
-    	character.addControl(new NavMeshAgent(navMesh, getApplication()));
+    	//Paths share an A* budget per frame. The service runs the other
+    	//queries, on its thread pool or on the calling thread.
+    	int threads = Runtime.getRuntime().availableProcessors();
+    	if (obstacleState != null) {
+    	    pathQueue = new PathRequestQueue(obstacleState.getNavMesh());
+    	    queryService = new NavMeshQueryService(obstacleState.getNavMesh(), threads);
+    	} else {
+    	    pathQueue = new PathRequestQueue(navMesh);
+    	    queryService = new NavMeshQueryService(navMesh, threads);
+    	}
+    	stateManager.attach(pathQueue);
+    	character.addControl(new NavMeshAgent(pathQueue, getApplication()));
     	character.addControl(new PCControl());
     	
     	int includeFlags = POLYFLAGS_WALK | POLYFLAGS_DOOR | POLYFLAGS_SWIM | POLYFLAGS_JUMP;
@@ -440,6 +504,8 @@ public class NavState extends AbstractNavState {
     	
     	NavMeshAgent agent = character.getControl(NavMeshAgent.class);
         agent.setQueryFilter(filter);
+        //Follow a corridor, repaired when the obstacles rebuild its tiles.
+        agent.setCorridorEnabled(true);
         
         MouseEventControl.addListenersToSpatial(worldMap, new DefaultMouseListener() {
             @Override
@@ -466,12 +532,24 @@ public class NavState extends AbstractNavState {
                     } else {
                         System.err.println("Unable to find path");
                     }
+                } else if (event.getButtonIndex() == MouseInput.BUTTON_MIDDLE && obstacleState != null) {
+                    //Drop an obstacle under the cursor, or move it there. The
+                    //tiles around it are rebuilt in the background.
+                    Vector3f locOnMap = getLocationOnMap();
+                    if (locOnMap != null) {
+                        if (obstacleId == 0) {
+                            obstacleId = obstacleState.addObstacle(locOnMap, 0.5f, agentHeight);
+                        } else {
+                            obstacleState.moveObstacle(obstacleId, locOnMap);
+                        }
+                        pathViewer.putBox(ColorRGBA.Orange, locOnMap.add(0, .5f, 0));
+                    }
                 } else {
-                	NavMeshTool tool = new NavMeshTool(navMesh);
                 	NavMeshHit hit = new NavMeshHit();
                 	Vector3f sourcePos = character.getWorldTranslation();
                 	Vector3f targetPos = getLocationOnMap();
-                	boolean blocked = tool.raycast(sourcePos, targetPos, hit, filter);
+                	//A single raycast, run on the render thread.
+                	boolean blocked = queryService.query(tool -> tool.raycast(sourcePos, targetPos, hit, filter));
                 	pathViewer.putLine(!blocked ? ColorRGBA.Green : ColorRGBA.Red, sourcePos, targetPos);
                 }
             }
@@ -911,7 +989,7 @@ public class NavState extends AbstractNavState {
         offMeshCon.detachAllChildren();
         
         //Step 2. Create a Recast configuration object.
-        RecastConfig cfg = new RecastConfigBuilder()
+        RecastConfigBuilder builder = new RecastConfigBuilder()
                 .withPartitionType(RecastConstants.PartitionType.MONOTONE)
                 .withWalkableAreaMod(AREAMOD_GROUND)
                 .withAgentRadius(agentRadius)
@@ -925,8 +1003,17 @@ public class NavState extends AbstractNavState {
                 .withDetailSampleDistance(6.0f) // increase if exception
                 .withDetailSampleMaxError(6.0f) // increase if exception
                 .withVertsPerPoly(3)
-                .withTileSize(16)
-                .build();
+                .withTileSize(16);
+
+        if (autoTuneTileSize) {
+            //Pick the tile size from a few sample tiles of the level.
+            RecastConfigTuner tuner = new RecastConfigTuner(m_geom, builder);
+            tuner.setPartitionTypes(RecastConstants.PartitionType.MONOTONE);
+            tuner.setTileSizes(16, 32, 64);
+            tuner.setTargetBuildMillis(1000);
+            builder = tuner.apply();
+        }
+        RecastConfig cfg = builder.build();
 
         boolean cCompatibility = false;
 
@@ -936,7 +1023,10 @@ public class NavState extends AbstractNavState {
          * another for traveling over the bridge.
          */
         JmeTileLayerBuilder layerBuilder = new JmeTileLayerBuilder(m_geom, cfg);
-        List<byte[]> layers = layerBuilder.build(ByteOrder.BIG_ENDIAN, cCompatibility, 1);
+        layerBuilder.setCompression(tileCacheCompression);
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<byte[]> layers = layerBuilder.build(ByteOrder.BIG_ENDIAN, cCompatibility, threads);
+        layerBuilder.printStats();
         
         //Build the tile cache which also builds the navMesh.
         TileCache tc = getTileCache(m_geom, cfg, ByteOrder.BIG_ENDIAN, cCompatibility);
@@ -957,24 +1047,37 @@ public class NavState extends AbstractNavState {
         }
 
         try {
-            //Save and read back for testing.
-            File f = new File("test-tile-cache_" + cfg.partitionType + ".tc");
-
-            //Write our tile cache.
-            TileCacheWriter writer = new TileCacheWriter();
-            writer.write(new FileOutputStream(f), tc, ByteOrder.BIG_ENDIAN, cCompatibility);
-            
-            //Read our tile cache.
-            TileCacheReader reader = new TileCacheReader();
-            tc = reader.read(new FileInputStream(f), cfg.maxVertsPerPoly, new JmeTileCacheMeshProcess());
+            //TileCacheReader only knows the compressors of TileCacheCompressorFactory.
+            if (tileCacheCompression.isReadable(cCompatibility)) {
+                //Save and read back for testing.
+                File f = new File("test-tile-cache_" + cfg.partitionType + ".tc");
+
+                //Write our tile cache.
+                TileCacheWriter writer = new TileCacheWriter();
+                writer.write(new FileOutputStream(f), tc, ByteOrder.BIG_ENDIAN, cCompatibility);
+
+                //Read our tile cache.
+                TileCacheReader reader = new TileCacheReader();
+                tc = reader.read(new FileInputStream(f), cfg.maxVertsPerPoly, new JmeTileCacheMeshProcess());
+            }
 
-            //Get the navMesh and build a query object.
+            //process off-mesh-connections on the navMesh of the tile cache,
+            //before it is copied into the versioned navMesh below.
             navMesh = tc.getNavMesh();
             navQuery = new NavMeshQuery(navMesh);
-
-            //process off-mesh-connections
             processOffMeshConnections();
 
+            //Dynamic obstacles rebuild the tiles on a worker thread, which
+            //publishes them to this navMesh on the render thread.
+            obstacleState = new TileCacheObstacleState(tc);
+            stateManager.attach(obstacleState);
+
+            //Get the navMesh and build a query object. The render thread keeps
+            //a version pinned and moves to the next one when it is published.
+            pinNavMesh(obstacleState.getNavMesh());
+            tileListener = (version, tiles) -> pinNavMesh(obstacleState.getNavMesh());
+            obstacleState.addListener(tileListener);
+
             //Tile data can be null since maxTiles is not an exact science.
             int maxTiles = tc.getTileCount();
 
@@ -1387,6 +1490,17 @@ public class NavState extends AbstractNavState {
         msw.write(new FileOutputStream(f), nm, ByteOrder.BIG_ENDIAN, false);
     }
     
+    //Pins the latest version of the navMesh for the render thread, releasing
+    //the previous one.
+    private void pinNavMesh(VersionedNavMesh versionedNavMesh) {
+        if (navMeshSnapshot != null) {
+            navMeshSnapshot.close();
+        }
+        navMeshSnapshot = versionedNavMesh.acquire();
+        navMesh = navMeshSnapshot.getNavMesh();
+        navQuery = navMeshSnapshot.getQuery();
+    }
+
     //Build the tile cache.
     private TileCache getTileCache(JmeInputGeomProvider geom, RecastConfig cfg, ByteOrder order, boolean cCompatibility) {
     	
@@ -1405,7 +1519,7 @@ public class NavState extends AbstractNavState {
         params.walkableClimb = agentMaxClimb;
         params.maxSimplificationError = cfg.maxSimplificationError;
         params.maxTiles = twh[0] * twh[1] * EXPECTED_LAYERS_PER_TILE;
-        params.maxObstacles = 128;
+        params.maxObstacles = 1024;
         
         NavMeshParams navMeshParams = new NavMeshParams();
         RecastVectors.copy(navMeshParams.orig, geom.getMeshBoundsMin());
@@ -1417,7 +1531,7 @@ public class NavState extends AbstractNavState {
         NavMesh navMesh = new NavMesh(navMeshParams, cfg.maxVertsPerPoly);
         
         TileCache tc = new TileCache(params, new TileCacheStorageParams(order, cCompatibility), 
-        		navMesh, TileCacheCompressorFactory.get(cCompatibility), new JmeTileCacheMeshProcess());
+        		navMesh, tileCacheCompression.get(), new JmeTileCacheMeshProcess());
 
         return tc;
     }
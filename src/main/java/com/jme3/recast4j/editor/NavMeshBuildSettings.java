@@ -188,6 +188,24 @@ public class NavMeshBuildSettings {
     
     public boolean tiled = false;
     
+    //The number of threads used to build the tiles of a tiled NavMesh.
+    //[Limit: >= 1]
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+    
+    //Converts each tile to Detour MeshData as soon as it is built, instead of
+    //keeping the Recast results of all the tiles until the end of the build.
+    //Lowers the peak memory of large tiled builds.
+    public boolean streaming = false;
+    
+    //Stores the tiles of a tiled NavMesh on disk and reads back the tiles whose
+    //inputs did not change on the next build. Tiles are then always built one
+    //by one on the worker threads, whatever the streaming setting.
+    public boolean diskCache = false;
+    
+    //Writes the input geometry next to the NavMesh file after each build, to
+    //rebuild the NavMesh later without loading the scene.
+    public boolean saveGeomSnapshot = false;
+    
     @Override
     public String toString() {
     	return ReflectionToStringBuilder.toString(this, ToStringStyle.MULTI_LINE_STYLE);
@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.file.Path;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.recast4j.detour.NavMesh;
@@ -12,11 +13,14 @@ import org.recast4j.detour.io.MeshSetWriter;
 
 import com.jme3.app.Application;
 import com.jme3.app.state.BaseAppState;
+import com.jme3.recast4j.Recast.Telemetry;
 import com.jme3.recast4j.debug.NavMeshDebugViewer;
 import com.jme3.recast4j.editor.builder.SoloNavMeshBuilder;
 import com.jme3.recast4j.editor.builder.TileNavMeshBuilder;
+import com.jme3.recast4j.geom.GeomSnapshot;
 import com.jme3.recast4j.geom.JmeGeomProviderBuilder;
 import com.jme3.recast4j.geom.JmeInputGeomProvider;
+import com.jme3.recast4j.geom.MeshDataDiskCache;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
 import com.jme3.scene.Node;
@@ -47,13 +51,17 @@ public class NavMeshGeneratorState extends BaseAppState {
 
     @Override
     protected void initialize(Application app) {
-        m_geom = new JmeGeomProviderBuilder(worldMap).build();
+        JmeGeomProviderBuilder geomBuilder = new JmeGeomProviderBuilder(worldMap);
+        geomBuilder.setParallelism(Runtime.getRuntime().availableProcessors());
+        m_geom = geomBuilder.build();
         nmDebugViewer = new NavMeshDebugViewer(app.getAssetManager());
         viewPort = app.getViewPort();
     }
 
     @Override
-    protected void cleanup(Application app) {}
+    protected void cleanup(Application app) {
+        tileNavMeshBuilder.shutdown();
+    }
 
     @Override
     protected void onEnable() {}
@@ -71,22 +79,43 @@ public class NavMeshGeneratorState extends BaseAppState {
             System.out.println(settingsUI);
 
             NavMesh navMesh = null;
+            Telemetry telemetry = new Telemetry();
             long startTime = System.currentTimeMillis();
 
             if (settingsUI.tiled) {
+                // Reuse the tiles of the previous builds.
+                if (settingsUI.diskCache) {
+                    Path cacheDir = Path.of("nm-generated", "cache", worldMap.getName());
+                    tileNavMeshBuilder.setDiskCache(new MeshDataDiskCache(cacheDir, settingsUI.vertsPerPoly));
+                } else {
+                    tileNavMeshBuilder.setDiskCache(null);
+                }
+                tileNavMeshBuilder.setTelemetry(telemetry);
                 navMesh = tileNavMeshBuilder.build(m_geom, settingsUI);
+                LOG.log(Level.FINE, "Allocated per tile: {0} KB", tileNavMeshBuilder.getAllocatedBytesPerTile() / 1024);
             } else {
                 navMesh = soloNavMeshBuilder.build(m_geom, settingsUI);
             }
 
             long endTime = System.currentTimeMillis() - startTime;
             System.out.println("Build NavMesh succeeded after: " + endTime + " ms");
+            LOG.log(Level.FINE, "TriMesh rebuilds avoided: {0}", m_geom.getMeshRebuildsAvoided());
 
             nmDebugViewer.clear();
             nmDebugViewer.drawNavMeshByArea(navMesh, true);
             nmDebugViewer.drawMeshBounds(m_geom);
 
             saveToFile(worldMap.getName(), navMesh);
+            if (settingsUI.saveGeomSnapshot) {
+                saveGeomSnapshot(worldMap.getName());
+            }
+
+            if (settingsUI.tiled) {
+                telemetry.print();
+                Path reportFile = Path.of("nm-generated", worldMap.getName() + "-telemetry.json");
+                System.out.println("Saving build report=" + reportFile.toAbsolutePath());
+                telemetry.writeReport(reportFile);
+            }
 
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -108,4 +137,17 @@ public class NavMeshGeneratorState extends BaseAppState {
         msw.write(new FileOutputStream(file), nm, ByteOrder.BIG_ENDIAN, false);
     }
 
+    /**
+     * Writes the input geometry, to rebuild the NavMesh without loading the
+     * scene.
+     * 
+     * @param fileName
+     * @throws IOException
+     */
+    private void saveGeomSnapshot(String fileName) throws IOException {
+        Path geomFile = Path.of("nm-generated", fileName + ".geom");
+        System.out.println("Saving geometry snapshot=" + geomFile.toAbsolutePath());
+        GeomSnapshot.write(m_geom, geomFile);
+    }
+
 }
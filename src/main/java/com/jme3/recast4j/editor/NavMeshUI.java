@@ -75,6 +75,10 @@ public class NavMeshUI extends BaseAppState {
 
         propertyPanel.addBooleanField("Tiling", settings, "tiled");
         propertyPanel.addIntField("Tile Size", settings, "tileSize", 16, 1024, 16);
+        propertyPanel.addIntField("Threads", settings, "parallelism", 1, 64, 1);
+        propertyPanel.addBooleanField("Streaming", settings, "streaming");
+        propertyPanel.addBooleanField("Disk Cache", settings, "diskCache");
+        propertyPanel.addBooleanField("Save Geometry", settings, "saveGeomSnapshot");
 
 
         RollupPanel rollup = new RollupPanel("NavMesh Settings", propertyPanel, "glass");
@@ -1,7 +1,15 @@
 package com.jme3.recast4j.editor.builder;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import org.recast4j.detour.DetourCommon;
 import org.recast4j.detour.MeshData;
@@ -11,14 +19,21 @@ import org.recast4j.detour.NavMeshDataCreateParams;
 import org.recast4j.detour.NavMeshParams;
 import org.recast4j.recast.Recast;
 import org.recast4j.recast.RecastBuilder.RecastBuilderResult;
+import org.recast4j.recast.RecastBuilderConfig;
 import org.recast4j.recast.RecastConfig;
 import org.recast4j.recast.RecastVectors;
 import org.recast4j.recast.geom.InputGeomProvider;
 
+import com.jme3.bounding.BoundingBox;
+import com.jme3.recast4j.Detour.VersionedNavMesh;
+import com.jme3.recast4j.Recast.Telemetry;
+import com.jme3.recast4j.Recast.Telemetry.Stage;
 import com.jme3.recast4j.editor.NavMeshBuildSettings;
 import com.jme3.recast4j.editor.SampleAreaModifications;
+import com.jme3.recast4j.geom.GridInputGeomProvider;
 import com.jme3.recast4j.geom.JmeInputGeomProvider;
 import com.jme3.recast4j.geom.JmeRecastBuilder;
+import com.jme3.recast4j.geom.MeshDataDiskCache;
 
 /**
  * 
@@ -26,6 +41,69 @@ import com.jme3.recast4j.geom.JmeRecastBuilder;
  */
 public class TileNavMeshBuilder extends AbstractNavMeshBuilder {
 
+    private static final Logger LOG = Logger.getLogger(TileNavMeshBuilder.class.getName());
+
+    // Worker pool shared by the builds, recreated when the parallelism changes.
+    private ForkJoinPool executor;
+    // Tile-bucketed copy of the last provider, reused while the provider, its
+    // modification count and the config match.
+    private JmeInputGeomProvider gridSource;
+    private int gridModCount;
+    private GridInputGeomProvider gridGeom;
+    // Receives the stage timers of the builds. [opt]
+    private Telemetry telemetry;
+    // Optional on-disk store of the tiles built so far.
+    private MeshDataDiskCache diskCache;
+    // Average heap allocated per tile by the last build, -1 if unknown.
+    private volatile long allocatedBytesPerTile = -1;
+
+    public Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Sets the Telemetry recording the stage timers and the span and polygon
+     * counts of every tile. Pass null to build without measuring.
+     * 
+     * @param telemetry
+     */
+    public void setTelemetry(Telemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    private JmeRecastBuilder createRecastBuilder() {
+        JmeRecastBuilder rcBuilder = new JmeRecastBuilder();
+        rcBuilder.setTelemetry(telemetry);
+        return rcBuilder;
+    }
+
+    /**
+     * Returns the average heap allocated by the worker threads per tile during
+     * the last build.
+     * 
+     * @return The number of bytes, or -1 if the JVM does not measure it.
+     */
+    public long getAllocatedBytesPerTile() {
+        return allocatedBytesPerTile;
+    }
+
+    public MeshDataDiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Sets the on-disk store used to skip the tiles whose inputs did not
+     * change since the previous build. Pass null to always build every tile.
+     * <p>
+     * With a cache the tiles are built one by one on the worker pool and
+     * converted to MeshData right away, whatever the streaming setting.
+     * 
+     * @param diskCache
+     */
+    public void setDiskCache(MeshDataDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
     /**
      * 
      * @param m_geom
@@ -34,52 +112,348 @@ public class TileNavMeshBuilder extends AbstractNavMeshBuilder {
      */
     public NavMesh build(JmeInputGeomProvider m_geom, NavMeshBuildSettings s) {
 
+        // Bucket the triangles by tile, once per geometry and config.
+        m_geom = getGridProvider(m_geom, createRecastConfig(s));
+
+        if (diskCache != null) {
+            return buildCached(m_geom, s);
+        }
+        if (s.streaming) {
+            return buildStreaming(m_geom, s);
+        }
+
         // Initialize build config.
-        RecastConfig cfg = new RecastConfig(s.partitionType, s.cellSize, s.cellHeight, s.agentHeight,
-            s.agentRadius, s.agentMaxClimb, s.agentMaxSlope, s.regionMinSize, s.regionMergeSize,
-            s.edgeMaxLen, s.edgeMaxError, s.vertsPerPoly, s.detailSampleDist, s.detailSampleMaxError,
-            s.tileSize, SampleAreaModifications.SAMPLE_AREAMOD_WALKABLE, s.filterLowHangingObstacles, s.filterLedgeSpans, s.filterWalkableLowHeightSpans);
+        RecastConfig cfg = createRecastConfig(s);
+
+        ForkJoinPool pool = getExecutor(s.parallelism);
 
         // Build all tiles
-        JmeRecastBuilder rcBuilder = new JmeRecastBuilder();
-        
-        int threads = 1;
-        RecastBuilderResult[][] rcResult = rcBuilder.buildTiles(m_geom, cfg, threads);
+        JmeRecastBuilder rcBuilder = createRecastBuilder();
+        RecastBuilderResult[][] rcResult = rcBuilder.buildTiles(m_geom, cfg, pool);
 
-        List<MeshData> lstMeshData = buildMeshData(m_geom, s.cellSize, s.cellHeight, s.agentHeight, s.agentRadius, s.agentMaxClimb, rcResult);
+        allocatedBytesPerTile = rcBuilder.getAllocatedBytesPerTile();
+
+        List<MeshData> lstMeshData = buildMeshData(m_geom, s, rcResult, pool);
         NavMesh navMesh = buildNavMesh(m_geom, lstMeshData, s.cellSize, s.tileSize, s.vertsPerPoly);
 
         return navMesh;
     }
 
-    private List<MeshData> buildMeshData(InputGeomProvider m_geom, float cellSize, float cellHeight, float agentHeight,
-        float agentRadius, float agentMaxClimb, RecastBuilderResult[][] rcResult) {
+    /**
+     * Builds the NavMesh one tile at a time. Each tile goes from rasterization
+     * to Detour MeshData on its worker thread and is added to the NavMesh right
+     * away, so the intermediate heightfields, contours and poly meshes of a
+     * tile are released as soon as the tile is done. The peak memory depends 
+     * on the number of worker threads instead of the number of tiles.
+     * <p>
+     * The tiles are added to the NavMesh in completion order.
+     * 
+     * @param m_geom
+     * @param s
+     * @return
+     */
+    public NavMesh buildStreaming(JmeInputGeomProvider m_geom, NavMeshBuildSettings s) {
+
+        // Initialize build config.
+        RecastConfig cfg = createRecastConfig(s);
+
+        ForkJoinPool pool = getExecutor(s.parallelism);
+
+        // Create empty nav mesh
+        NavMesh navMesh = createNavMesh(m_geom, s.cellSize, s.tileSize, s.vertsPerPoly);
+
+        JmeRecastBuilder rcBuilder = createRecastBuilder();
+        CompletableFuture<Void> job = rcBuilder.streamTilesAsync(m_geom, cfg, pool, (tx, ty, rcResult) -> {
+            MeshData md = buildTileMeshData(m_geom, s, rcResult, tx, ty);
+            if (md != null) {
+                // NavMesh is not thread-safe.
+                synchronized (navMesh) {
+                    navMesh.addTile(md, 0, 0);
+                }
+            }
+        });
+        job.join();
+        allocatedBytesPerTile = rcBuilder.getAllocatedBytesPerTile();
+
+        return navMesh;
+    }
+
+    /**
+     * Builds the NavMesh tile by tile, reading the unchanged tiles back from 
+     * the disk cache. Only the tiles whose triangles, areas, off-mesh links or
+     * settings changed go through Recast, and they are stored for the next 
+     * build.
+     * 
+     * @param m_geom
+     * @param s
+     * @return
+     */
+    private NavMesh buildCached(JmeInputGeomProvider m_geom, NavMeshBuildSettings s) {
+
+        // Initialize build config.
+        RecastConfig cfg = createRecastConfig(s);
+
+        float[] bmin = m_geom.getMeshBoundsMin();
+        float[] bmax = m_geom.getMeshBoundsMax();
+        int[] twh = Recast.calcTileCount(bmin, bmax, cfg.cs, cfg.tileSize);
+        int tw = twh[0];
+        int th = twh[1];
+
+        long hits = diskCache.getHits();
+
+        JmeRecastBuilder rcBuilder = createRecastBuilder();
+        MeshData[] tiles = new MeshData[tw * th];
+        Set<String> keys = ConcurrentHashMap.newKeySet();
+        getExecutor(s.parallelism).submit(() -> IntStream.range(0, tw * th).parallel().forEach(i -> {
+            int x = i % tw;
+            int y = i / tw;
+            tiles[i] = buildTile(rcBuilder, m_geom, s, cfg, bmin, bmax, x, y, keys);
+        })).join();
+
+        allocatedBytesPerTile = rcBuilder.getAllocatedBytesPerTile();
+        LOG.log(Level.FINE, "Tiles loaded from cache: {0}/{1}", new Object[] { diskCache.getHits() - hits, tiles.length });
+
+        // Drop the tiles of the previous geometry and settings.
+        try {
+            diskCache.retain(keys);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot remove the stale cached tiles", e);
+        }
 
         List<MeshData> meshData = new ArrayList<>();
+        for (MeshData md : tiles) {
+            if (md != null) {
+                meshData.add(md);
+            }
+        }
+
+        return buildNavMesh(m_geom, meshData, s.cellSize, s.tileSize, s.vertsPerPoly);
+    }
+
+    /**
+     * Rebuilds only the tiles touched by the supplied world bounds and swaps 
+     * them into the live NavMesh. Use it after moving or adding geometry, 
+     * instead of building the whole level again.
+     * <p>
+     * The provider must hold the updated geometry. The tile grid keeps the 
+     * origin of the NavMesh, so the result matches a full build as long as the
+     * level bounds do not change. Must be called from the thread owning the 
+     * NavMesh, the tiles themselves are built on the worker pool.
+     * 
+     * @param navMesh     The NavMesh to update.
+     * @param m_geom      The updated geometry.
+     * @param s           The settings used to build the NavMesh.
+     * @param dirtyBounds The world bounds of the changed geometry.
+     * @return The number of rebuilt tiles.
+     */
+    public int rebuildTiles(NavMesh navMesh, JmeInputGeomProvider m_geom, NavMeshBuildSettings s, List<BoundingBox> dirtyBounds) {
+        List<int[]> tiles = new ArrayList<>();
+        MeshData[] meshData = buildDirtyTiles(navMesh.getParams(), m_geom, s, dirtyBounds, tiles);
+        swapTiles(navMesh, tiles, meshData);
+        return tiles.size();
+    }
+
+    /**
+     * Same as {@link #rebuildTiles(NavMesh, JmeInputGeomProvider, NavMeshBuildSettings, List)},
+     * but publishes the tiles as a new version of the NavMesh. Can be called 
+     * from any thread while other threads query the NavMesh.
+     * 
+     * @param navMesh     The NavMesh to update.
+     * @param m_geom      The updated geometry.
+     * @param s           The settings used to build the NavMesh.
+     * @param dirtyBounds The world bounds of the changed geometry.
+     * @return The number of rebuilt tiles.
+     */
+    public int rebuildTiles(VersionedNavMesh navMesh, JmeInputGeomProvider m_geom, NavMeshBuildSettings s, List<BoundingBox> dirtyBounds) {
+        List<int[]> tiles = new ArrayList<>();
+        MeshData[] meshData = buildDirtyTiles(navMesh.getParams(), m_geom, s, dirtyBounds, tiles);
+        navMesh.publish(nm -> swapTiles(nm, tiles, meshData));
+        return tiles.size();
+    }
+
+    private MeshData[] buildDirtyTiles(NavMeshParams params, JmeInputGeomProvider m_geom, NavMeshBuildSettings s, 
+            List<BoundingBox> dirtyBounds, List<int[]> tiles) {
+
+        // Initialize build config.
+        RecastConfig cfg = createRecastConfig(s);
+
+        // Keep the tile grid of the NavMesh.
+        float[] orig = params.orig;
+        float[] bmin = new float[] { orig[0], Math.min(orig[1], m_geom.getMeshBoundsMin()[1]), orig[2] };
+        float[] bmax = m_geom.getMeshBoundsMax();
+
+        JmeRecastBuilder rcBuilder = createRecastBuilder();
+        tiles.addAll(rcBuilder.getTilesOverlapping(bmin, bmax, cfg, dirtyBounds));
+
+        // Build the new tiles in parallel.
+        MeshData[] meshData = new MeshData[tiles.size()];
+        getExecutor(s.parallelism).submit(() -> IntStream.range(0, tiles.size()).parallel().forEach(i -> {
+            int[] tile = tiles.get(i);
+            meshData[i] = buildTile(rcBuilder, m_geom, s, cfg, bmin, bmax, tile[0], tile[1], null);
+        })).join();
+
+        return meshData;
+    }
+
+    private static void swapTiles(NavMesh navMesh, List<int[]> tiles, MeshData[] meshData) {
+        for (int i = 0; i < meshData.length; i++) {
+            int[] tile = tiles.get(i);
+            VersionedNavMesh.replaceTile(navMesh, tile[0], tile[1], 0, meshData[i]);
+        }
+    }
+
+    private synchronized JmeInputGeomProvider getGridProvider(JmeInputGeomProvider m_geom, RecastConfig cfg) {
+        if (m_geom instanceof GridInputGeomProvider) {
+            return m_geom;
+        }
+        if (gridSource != m_geom || gridModCount != m_geom.getModificationCount() || !gridGeom.matches(cfg)) {
+            gridGeom = new GridInputGeomProvider(m_geom, cfg);
+            gridSource = m_geom;
+            gridModCount = m_geom.getModificationCount();
+        }
+        return gridGeom;
+    }
+
+    protected RecastConfig createRecastConfig(NavMeshBuildSettings s) {
+        return new RecastConfig(s.partitionType, s.cellSize, s.cellHeight, s.agentHeight,
+            s.agentRadius, s.agentMaxClimb, s.agentMaxSlope, s.regionMinSize, s.regionMergeSize,
+            s.edgeMaxLen, s.edgeMaxError, s.vertsPerPoly, s.detailSampleDist, s.detailSampleMaxError,
+            s.tileSize, SampleAreaModifications.SAMPLE_AREAMOD_WALKABLE, s.filterLowHangingObstacles, s.filterLedgeSpans, s.filterWalkableLowHeightSpans);
+    }
+
+    private List<MeshData> buildMeshData(InputGeomProvider m_geom, NavMeshBuildSettings s, RecastBuilderResult[][] rcResult, ForkJoinPool pool) {
 
         // Add tiles to nav mesh
         int tw = rcResult.length;
         int th = rcResult[0].length;
 
-        for (int y = 0; y < th; y++) {
-            for (int x = 0; x < tw; x++) {
-                NavMeshDataCreateParams params = getNavMeshCreateParams(m_geom,
-                    cellSize, cellHeight, agentHeight, agentRadius, agentMaxClimb, rcResult[x][y]);
-                params.tileX = x;
-                params.tileY = y;
+        // Create the MeshData and BV-tree of each tile in parallel. The results
+        // are stored by tile index so the NavMesh tile order stays the same as 
+        // a single threaded build.
+        MeshData[] tiles = new MeshData[tw * th];
+        pool.submit(() -> IntStream.range(0, tw * th).parallel().forEach(i -> {
+            int x = i % tw;
+            int y = i / tw;
+            tiles[i] = buildTileMeshData(m_geom, s, rcResult[x][y], x, y);
+        })).join();
 
-                MeshData md = NavMeshBuilder.createNavMeshData(params);
-                if (md != null) {
-                    meshData.add(updateAreaAndFlags(md));
-                }
+        List<MeshData> meshData = new ArrayList<>();
+        for (MeshData md : tiles) {
+            if (md != null) {
+                meshData.add(md);
             }
         }
 
         return meshData;
     }
 
+    /**
+     * Builds a single tile from scratch, going through the disk cache when one
+     * is set.
+     * 
+     * @param keys Receives the cache key of the tile. [opt]
+     * @return The MeshData or null if the tile is empty.
+     */
+    private MeshData buildTile(JmeRecastBuilder rcBuilder, JmeInputGeomProvider m_geom, NavMeshBuildSettings s,
+            RecastConfig cfg, float[] bmin, float[] bmax, int tx, int ty, Set<String> keys) {
+
+        String key = null;
+        if (diskCache != null) {
+            key = diskCache.computeKey(m_geom, cfg, bmin, bmax, tx, ty, s.agentHeight, s.agentRadius, s.agentMaxClimb);
+            if (keys != null) {
+                keys.add(key);
+            }
+            if (diskCache.contains(key)) {
+                try {
+                    return diskCache.load(key);
+                } catch (IOException e) {
+                    // Corrupted entry, build the tile again.
+                    LOG.log(Level.WARNING, "Cannot load the cached tile " + key, e);
+                }
+            }
+        }
+
+        RecastBuilderConfig bcfg = new RecastBuilderConfig(cfg, bmin, bmax, tx, ty, true);
+        if (telemetry != null) {
+            telemetry.beginTile(tx, ty);
+        }
+        RecastBuilderResult rcResult;
+        try {
+            rcResult = rcBuilder.buildTransient(m_geom, bcfg);
+        } finally {
+            if (telemetry != null) {
+                telemetry.endTile();
+            }
+        }
+        MeshData md = buildTileMeshData(m_geom, s, rcResult, tx, ty);
+
+        if (diskCache != null) {
+            try {
+                diskCache.store(key, md);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot store the tile " + key, e);
+            }
+        }
+        return md;
+    }
+
+    /**
+     * Creates the Detour MeshData of a single tile.
+     * 
+     * @return The MeshData or null if the tile is empty.
+     */
+    private MeshData buildTileMeshData(InputGeomProvider m_geom, NavMeshBuildSettings s, RecastBuilderResult rcResult, int tx, int ty) {
+        NavMeshDataCreateParams params = getNavMeshCreateParams(m_geom,
+            s.cellSize, s.cellHeight, s.agentHeight, s.agentRadius, s.agentMaxClimb, rcResult);
+        params.tileX = tx;
+        params.tileY = ty;
+
+        if (telemetry != null) {
+            telemetry.beginTile(tx, ty);
+            telemetry.startTimer(Stage.DETOUR_TILE);
+        }
+        try {
+            MeshData md = NavMeshBuilder.createNavMeshData(params);
+            return md != null ? updateAreaAndFlags(md) : null;
+        } finally {
+            if (telemetry != null) {
+                telemetry.stopTimer(Stage.DETOUR_TILE);
+                telemetry.endTile();
+            }
+        }
+    }
+
+    private synchronized ForkJoinPool getExecutor(int parallelism) {
+        parallelism = Math.max(1, parallelism);
+        if (executor == null || executor.getParallelism() != parallelism) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            executor = new ForkJoinPool(parallelism);
+        }
+        return executor;
+    }
+
+    /**
+     * Releases the worker threads of this builder.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
     private NavMesh buildNavMesh(InputGeomProvider m_geom, List<MeshData> meshData, float cellSize, int tileSize, int vertsPerPoly) {
 
+        NavMesh navMesh = createNavMesh(m_geom, cellSize, tileSize, vertsPerPoly);
+        meshData.forEach(md -> navMesh.addTile(md, 0, 0));
+
+        return navMesh;
+    }
+
+    private NavMesh createNavMesh(InputGeomProvider m_geom, float cellSize, int tileSize, int vertsPerPoly) {
+
         NavMeshParams navMeshParams = new NavMeshParams();
         RecastVectors.copy(navMeshParams.orig, m_geom.getMeshBoundsMin());
         navMeshParams.tileWidth = tileSize * cellSize;
@@ -87,10 +461,7 @@ public class TileNavMeshBuilder extends AbstractNavMeshBuilder {
         navMeshParams.maxTiles = getMaxTiles(m_geom, cellSize, tileSize);
         navMeshParams.maxPolys = getMaxPolysPerTile(m_geom, cellSize, tileSize);
 
-        NavMesh navMesh = new NavMesh(navMeshParams, vertsPerPoly);
-        meshData.forEach(md -> navMesh.addTile(md, 0, 0));
-
-        return navMesh;
+        return new NavMesh(navMeshParams, vertsPerPoly);
     }
 
     private int getMaxTiles(InputGeomProvider geom, float cellSize, int tileSize) {
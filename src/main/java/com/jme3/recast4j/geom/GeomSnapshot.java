@@ -0,0 +1,251 @@
+package com.jme3.recast4j.geom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.recast4j.recast.AreaModification;
+import org.recast4j.recast.ConvexVolume;
+
+/**
+ * Binary snapshot of a JmeInputGeomProvider: vertices, faces, normals (if
+ * computed), bounds, the triangle ranges and area of the NavMeshBuildSources,
+ * the convex volumes and the off-mesh links.
+ * <p>
+ * The file is written sequentially through a FileChannel and read back
+ * through a read-only memory mapping. The arrays are stored as contiguous
+ * blocks in little-endian byte order and copied with bulk puts and gets, so a
+ * headless server can build a NavMesh from a snapshot without loading any jME
+ * asset. The NavMeshBuildSources of a loaded provider have no Geometry.
+ *
+ * <pre>
+ * int      magic, version
+ * float[6] bmin, bmax
+ * int      vertices, faces, normals lengths, then the three blocks
+ * int      sources,  then (offset, length, area value, area mask) per source
+ * int      volumes,  then (hmin, hmax, area value, area mask, verts length, verts) per volume
+ * int      links,    then (verts[6], radius, biDirectional, area, flags, userID) per link
+ * </pre>
+ *
+ * @author capdevon
+ */
+public class GeomSnapshot {
+
+    private static final int MAGIC = 'J' << 24 | 'G' << 16 | 'E' << 8 | 'O';
+    private static final int VERSION = 2;
+    // Fixed so that a snapshot can be copied between machines.
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    // Size of the buffer the file is written through.
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private GeomSnapshot() {}
+
+    /**
+     * Writes the provider to a snapshot file.
+     *
+     * @param geom
+     * @param file
+     * @throws IOException
+     */
+    public static void write(JmeInputGeomProvider geom, Path file) throws IOException {
+        List<NavMeshBuildSource> sources = geom.getModifications();
+        List<ConvexVolume> volumes = geom.convexVolumes();
+        List<OffMeshLink> links = geom.getOffMeshConnections();
+        // Only stored if already computed.
+        float[] normals = geom.getComputedNormals();
+        if (normals == null) {
+            normals = new float[0];
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            BlockWriter out = new BlockWriter(channel);
+
+            out.require(8 + 24 + 12);
+            out.buf.putInt(MAGIC).putInt(VERSION);
+            out.putFloats(geom.getMeshBoundsMin());
+            out.putFloats(geom.getMeshBoundsMax());
+
+            out.require(12);
+            out.buf.putInt(geom.vertices.length).putInt(geom.faces.length).putInt(normals.length);
+            out.putFloats(geom.vertices);
+            out.putInts(geom.faces);
+            out.putFloats(normals);
+
+            out.require(4);
+            out.buf.putInt(sources.size());
+            int fromIndex = 0;
+            for (NavMeshBuildSource source : sources) {
+                int offset = source.getGeomOffset() >= 0 ? source.getGeomOffset() : fromIndex;
+                out.require(16);
+                out.buf.putInt(offset).putInt(source.getGeomLength());
+                putArea(out.buf, source.getAreaModification());
+                fromIndex = offset + source.getGeomLength();
+            }
+
+            out.require(4);
+            out.buf.putInt(volumes.size());
+            for (ConvexVolume vol : volumes) {
+                out.require(20);
+                out.buf.putFloat(vol.hmin).putFloat(vol.hmax);
+                putArea(out.buf, vol.areaMod);
+                out.buf.putInt(vol.verts.length);
+                out.putFloats(vol.verts);
+            }
+
+            out.require(4);
+            out.buf.putInt(links.size());
+            for (OffMeshLink link : links) {
+                out.putFloats(link.verts);
+                out.require(20);
+                out.buf.putFloat(link.radius);
+                out.buf.putInt(link.biDirectional ? 1 : 0).putInt(link.area).putInt(link.flags).putInt(link.userID);
+            }
+
+            out.flush();
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Loads a provider from a snapshot file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static JmeInputGeomProvider read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(BYTE_ORDER);
+
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Invalid geometry snapshot: " + file);
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported geometry snapshot version: " + version);
+            }
+
+            float[] bmin = getFloats(buf, 3);
+            float[] bmax = getFloats(buf, 3);
+
+            int nverts = buf.getInt();
+            int nfaces = buf.getInt();
+            int nnormals = buf.getInt();
+            float[] vertices = getFloats(buf, nverts);
+            int[] faces = new int[nfaces];
+            buf.asIntBuffer().get(faces);
+            buf.position(buf.position() + nfaces * 4);
+            float[] normals = nnormals > 0 ? getFloats(buf, nnormals) : null;
+
+            JmeInputGeomProvider geom = new JmeInputGeomProvider(vertices, faces, normals, bmin, bmax);
+
+            int nsources = buf.getInt();
+            for (int i = 0; i < nsources; i++) {
+                int offset = buf.getInt();
+                int length = buf.getInt();
+                geom.addModification(new NavMeshBuildSource(getArea(buf), offset, length));
+            }
+
+            int nvolumes = buf.getInt();
+            for (int i = 0; i < nvolumes; i++) {
+                float hmin = buf.getFloat();
+                float hmax = buf.getFloat();
+                AreaModification areaMod = getArea(buf);
+                float[] verts = getFloats(buf, buf.getInt());
+                geom.addConvexVolume(verts, hmin, hmax, areaMod);
+            }
+
+            int nlinks = buf.getInt();
+            for (int i = 0; i < nlinks; i++) {
+                float[] start = getFloats(buf, 3);
+                float[] end = getFloats(buf, 3);
+                float radius = buf.getFloat();
+                boolean biDirectional = buf.getInt() != 0;
+                int area = buf.getInt();
+                int flags = buf.getInt();
+                int userID = buf.getInt();
+                geom.addOffMeshConnection(new OffMeshLink(start, end, radius, biDirectional, area, flags, userID));
+            }
+
+            return geom;
+        }
+    }
+
+    private static float[] getFloats(MappedByteBuffer buf, int length) {
+        float[] values = new float[length];
+        buf.asFloatBuffer().get(values);
+        buf.position(buf.position() + length * 4);
+        return values;
+    }
+
+    private static void putArea(ByteBuffer buf, AreaModification areaMod) {
+        buf.putInt(areaMod.getValue()).putInt(areaMod.getMask());
+    }
+
+    private static AreaModification getArea(MappedByteBuffer buf) {
+        int value = buf.getInt();
+        int mask = buf.getInt();
+        return new AreaModification(value, mask);
+    }
+
+    /**
+     * Writes the blocks of a snapshot through a fixed size direct buffer.
+     */
+    private static class BlockWriter {
+        final FileChannel channel;
+        final ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE).order(BYTE_ORDER);
+
+        BlockWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Makes room for the given number of bytes, at most BLOCK_SIZE.
+         */
+        void require(int bytes) throws IOException {
+            if (buf.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+
+        void putFloats(float[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                require(4);
+                int count = Math.min(values.length - offset, buf.remaining() / 4);
+                buf.asFloatBuffer().put(values, offset, count);
+                buf.position(buf.position() + count * 4);
+                offset += count;
+            }
+        }
+
+        void putInts(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                require(4);
+                int count = Math.min(values.length - offset, buf.remaining() / 4);
+                buf.asIntBuffer().put(values, offset, count);
+                buf.position(buf.position() + count * 4);
+                offset += count;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.jme3.recast4j.geom;
+
+import java.util.Arrays;
+
+import org.recast4j.recast.Context;
+import org.recast4j.recast.Recast;
+import org.recast4j.recast.RecastConfig;
+
+/**
+ * A JmeInputGeomProvider whose triangles are bucketed into a uniform grid
+ * aligned to the NavMesh tiles (tileSize * cs), with the area id of each
+ * triangle computed once at construction.
+ * <p>
+ * A tile only visits the buckets overlapping its border-expanded bounds, so
+ * the rasterization cost of a tile depends on the local triangle density
+ * instead of the whole level. The area ids are resolved once for all the
+ * tiles from the TriangleAreaTable of the source provider, so they follow the
+ * same rules as a build without the grid, including the order of the
+ * modifications.
+ * <p>
+ * The grid is only valid for a RecastConfig with the same cell size, tile
+ * size, walkable slope and walkable area; see {@link #matches(RecastConfig)}.
+ * With any other config the provider behaves like a JmeInputGeomProvider.
+ *
+ * @author capdevon
+ */
+public class GridInputGeomProvider extends JmeInputGeomProvider {
+
+    // The config the grid and the areas were built for.
+    private final float tileWorldSize;
+    private final float walkableSlopeAngle;
+    private final int walkableAreaMod;
+
+    // Area id of each triangle.
+    final int[] triAreas;
+
+    private final int gridWidth;
+    private final int gridHeight;
+    // Triangles of each cell, in compressed sparse row layout: the triangles of
+    // cell i are cellTris[cellStart[i]] to cellTris[cellStart[i + 1] - 1].
+    private final int[] cellStart;
+    private final int[] cellTris;
+    // The first cell covered by each triangle, used to visit a triangle once
+    // per query even if it spans several cells.
+    private final int[] triMinCellX;
+    private final int[] triMinCellY;
+
+    /**
+     * Builds the grid from the geometry, modifications, convex volumes and
+     * off-mesh links of an existing provider.
+     *
+     * @param geom The source provider.
+     * @param cfg  The config of the tiled build.
+     */
+    public GridInputGeomProvider(JmeInputGeomProvider geom, RecastConfig cfg) {
+        super(geom.vertices, geom.faces);
+
+        if (cfg.tileSize <= 0) {
+            throw new IllegalArgumentException("GridInputGeomProvider requires a tiled config");
+        }
+
+        listModifications.addAll(geom.getModifications());
+        convexVolumes.addAll(geom.convexVolumes());
+        offMeshConnections.addAll(geom.getOffMeshConnections());
+
+        this.tileWorldSize = cfg.tileSize * cfg.cs;
+        this.walkableSlopeAngle = cfg.walkableSlopeAngle;
+        this.walkableAreaMod = cfg.walkableAreaMod.getMaskedValue();
+
+        Context ctx = new Context();
+        int ntris = faces.length / 3;
+        if (listModifications.isEmpty()) {
+            triAreas = Recast.markWalkableTriangles(ctx, walkableSlopeAngle, vertices, faces, ntris, cfg.walkableAreaMod);
+        } else {
+            triAreas = getTriangleAreaTable(ctx, walkableSlopeAngle).areas;
+        }
+
+        int[] twh = Recast.calcTileCount(bmin, bmax, cfg.cs, cfg.tileSize);
+        gridWidth = twh[0];
+        gridHeight = twh[1];
+
+        // Cell range of each triangle.
+        triMinCellX = new int[ntris];
+        triMinCellY = new int[ntris];
+        int[] triMaxCellX = new int[ntris];
+        int[] triMaxCellY = new int[ntris];
+
+        cellStart = new int[gridWidth * gridHeight + 1];
+        for (int t = 0; t < ntris; t++) {
+            float minx = Float.MAX_VALUE, minz = Float.MAX_VALUE;
+            float maxx = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+            for (int k = 0; k < 3; k++) {
+                int v = faces[t * 3 + k] * 3;
+                minx = Math.min(minx, vertices[v]);
+                maxx = Math.max(maxx, vertices[v]);
+                minz = Math.min(minz, vertices[v + 2]);
+                maxz = Math.max(maxz, vertices[v + 2]);
+            }
+            triMinCellX[t] = cellX(minx);
+            triMinCellY[t] = cellY(minz);
+            triMaxCellX[t] = cellX(maxx);
+            triMaxCellY[t] = cellY(maxz);
+
+            for (int y = triMinCellY[t]; y <= triMaxCellY[t]; y++) {
+                for (int x = triMinCellX[t]; x <= triMaxCellX[t]; x++) {
+                    cellStart[y * gridWidth + x + 1]++;
+                }
+            }
+        }
+
+        // Prefix sum of the cell sizes, then fill the cells.
+        for (int i = 0; i < gridWidth * gridHeight; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        cellTris = new int[cellStart[gridWidth * gridHeight]];
+        int[] cursor = Arrays.copyOf(cellStart, gridWidth * gridHeight);
+        for (int t = 0; t < ntris; t++) {
+            for (int y = triMinCellY[t]; y <= triMaxCellY[t]; y++) {
+                for (int x = triMinCellX[t]; x <= triMaxCellX[t]; x++) {
+                    cellTris[cursor[y * gridWidth + x]++] = t;
+                }
+            }
+        }
+    }
+
+    private int cellX(float x) {
+        return clamp((int) Math.floor((x - bmin[0]) / tileWorldSize), 0, gridWidth - 1);
+    }
+
+    private int cellY(float z) {
+        return clamp((int) Math.floor((z - bmin[2]) / tileWorldSize), 0, gridHeight - 1);
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+
+    /**
+     * @param cfg
+     * @return True if the grid and the area ids were built for this config.
+     */
+    public boolean matches(RecastConfig cfg) {
+        return cfg.tileSize > 0
+                && cfg.tileSize * cfg.cs == tileWorldSize
+                && cfg.walkableSlopeAngle == walkableSlopeAngle
+                && cfg.walkableAreaMod.getMaskedValue() == walkableAreaMod;
+    }
+
+    /**
+     * Counts the triangles of the cells overlapping the supplied bounds from
+     * the cell sizes, without visiting the cells. A triangle spanning several
+     * of these cells is counted once per cell.
+     *
+     * @param bmin The minimum bounds (x, y, z).
+     * @param bmax The maximum bounds (x, y, z).
+     * @return The upper bound of the number of triangles.
+     */
+    int countTrianglesOverlapping(float[] bmin, float[] bmax) {
+        int x0 = cellX(bmin[0]);
+        int y0 = cellY(bmin[2]);
+        int x1 = cellX(bmax[0]);
+        int y1 = cellY(bmax[2]);
+
+        // The cells of a row are contiguous in cellTris.
+        int count = 0;
+        for (int y = y0; y <= y1; y++) {
+            count += cellStart[y * gridWidth + x1 + 1] - cellStart[y * gridWidth + x0];
+        }
+        return count;
+    }
+
+    /**
+     * Collects the triangles of the cells overlapping the supplied bounds. Each
+     * triangle is returned once, even if it spans several cells.
+     *
+     * @param bmin    The minimum bounds (x, y, z).
+     * @param bmax    The maximum bounds (x, y, z).
+     * @param scratch Receives the triangle numbers in its triangles buffer.
+     * @return The number of triangles.
+     */
+    int getTrianglesOverlapping(float[] bmin, float[] bmax, TileScratch scratch) {
+        int x0 = cellX(bmin[0]);
+        int y0 = cellY(bmin[2]);
+        int x1 = cellX(bmax[0]);
+        int y1 = cellY(bmax[2]);
+
+        int[] result = scratch.triangles(countTrianglesOverlapping(bmin, bmax));
+        int n = 0;
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                int cell = y * gridWidth + x;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int t = cellTris[i];
+                    // Keep the triangle only in the first cell of the query it covers.
+                    if (x == Math.max(triMinCellX[t], x0) && y == Math.max(triMinCellY[t], y0)) {
+                        result[n++] = t;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+}
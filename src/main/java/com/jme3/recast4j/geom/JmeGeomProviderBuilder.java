@@ -1,25 +1,28 @@
 package com.jme3.recast4j.geom;
 
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 import org.recast4j.recast.AreaModification;
 
 import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Matrix4f;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
-import com.jme3.scene.SceneGraphVisitorAdapter;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.util.BufferUtils;
 
-import jme3tools.optimize.GeometryBatchFactory;
-
 /**
  * This class will build a GeometryProvider for Recast to work with.
  * 
@@ -30,7 +33,8 @@ public class JmeGeomProviderBuilder {
     private static final Predicate<Spatial> DefaultFilter = sp -> sp.getUserData("ignoreFromBuild") == null;
 
     private List<Geometry> geometryList;
-    private Mesh mesh;
+    // Number of threads used to copy the vertex data, 1 copies on the caller thread.
+    private int parallelism = 1;
 
     /**
      * Provides this Geometry to the Builder
@@ -75,6 +79,21 @@ public class JmeGeomProviderBuilder {
         geometryList = findGeometries(root, new ArrayList<>(), includedWorldBounds);
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used to transform and copy the vertex data
+     * of the geometries. Values greater than 1 enable the parallel extraction,
+     * worth it on scenes with many geometries.
+     * 
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
     protected List<Geometry> findGeometries(Node node, List<Geometry> geoms, Predicate<Spatial> filter) {
         for (Spatial spatial : node.getChildren()) {
             if (!filter.test(spatial)) {
@@ -122,13 +141,166 @@ public class JmeGeomProviderBuilder {
         return triangles;
     }
 
-    public JmeInputGeomProvider build() {
-        if (mesh == null) {
-            mesh = new Mesh();
-            GeometryBatchFactory.mergeGeometries(geometryList, mesh);
+    /**
+     * Copies the world space positions and the triangle indices of the
+     * geometries straight into a single pair of arrays, without merging them
+     * into a temporary Mesh first. The buffers of each mesh are read in bulk
+     * and the world transform is applied in place.
+     * <p>
+     * The meshes and world transforms are snapshotted on the caller thread,
+     * then with a parallelism greater than 1 each geometry is copied into its
+     * own range of the arrays by a fork-join pool.
+     * 
+     * @param geometries The geometries to extract.
+     * @param sources    The build sources of the geometries, in the same order,
+     *                   or null. Their triangle range is recorded while copying.
+     * @return
+     */
+    protected JmeInputGeomProvider extractGeometries(List<Geometry> geometries, List<NavMeshBuildSource> sources) {
+
+        int n = geometries.size();
+        Mesh[] meshes = new Mesh[n];
+        Matrix4f[] worldMatrices = new Matrix4f[n];
+        int[] vertOffsets = new int[n + 1];
+        int[] triOffsets = new int[n + 1];
+
+        // Snapshot the scene and size the arrays up front. The scene graph is
+        // not thread-safe, so this part stays on the caller thread.
+        for (int i = 0; i < n; i++) {
+            Geometry geo = geometries.get(i);
+            Mesh mesh = geo.getMesh();
+            int vertCount = 0;
+            int triCount = 0;
+            if (isTriangleMesh(mesh)) {
+                meshes[i] = mesh;
+                worldMatrices[i] = geo.getWorldMatrix().clone();
+                vertCount = mesh.getVertexCount();
+                triCount = mesh.getTriangleCount();
+            }
+            vertOffsets[i + 1] = vertOffsets[i] + vertCount * 3;
+            triOffsets[i + 1] = triOffsets[i] + triCount * 3;
+        }
+
+        float[] verts = new float[vertOffsets[n]];
+        int[] tris = new int[triOffsets[n]];
+
+        IntConsumer copyGeometry = i -> {
+            if (meshes[i] != null) {
+                copyPositions(meshes[i], worldMatrices[i], verts, vertOffsets[i]);
+                copyIndices(meshes[i], tris, triOffsets[i], vertOffsets[i] / 3);
+            }
+        };
+
+        if (parallelism > 1 && n > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> IntStream.range(0, n).parallel().forEach(copyGeometry)).join();
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            IntStream.range(0, n).forEach(copyGeometry);
         }
 
-        return new JmeInputGeomProvider(getVertices(mesh), getIndices(mesh));
+        if (sources != null) {
+            for (int i = 0; i < n; i++) {
+                sources.get(i).setGeomRange(triOffsets[i], triOffsets[i + 1] - triOffsets[i]);
+            }
+        }
+
+        return new JmeInputGeomProvider(verts, tris);
+    }
+
+    /**
+     * Applies the markups to a geometry. The markups of the geometry and of
+     * its ancestors are applied in list order: an ignoring markup excludes the
+     * geometry, otherwise the last overriding markup sets the area.
+     * 
+     * @return The area of the geometry or null if it is ignored.
+     */
+    private AreaModification resolveArea(Geometry geo, AreaModification defaultArea,
+            List<NavMeshBuildMarkup> markups, Map<Spatial, List<Integer>> markupsByRoot) {
+
+        if (markupsByRoot.isEmpty()) {
+            return defaultArea;
+        }
+
+        int lastOverride = -1;
+        AreaModification area = defaultArea;
+
+        for (Spatial sp = geo; sp != null; sp = sp.getParent()) {
+            List<Integer> indices = markupsByRoot.get(sp);
+            if (indices == null) {
+                continue;
+            }
+            for (int index : indices) {
+                NavMeshBuildMarkup markup = markups.get(index);
+                if (markup.ignoreFromBuild) {
+                    return null;
+                }
+                if (markup.overrideArea && index > lastOverride) {
+                    lastOverride = index;
+                    area = markup.area;
+                }
+            }
+        }
+        return area;
+    }
+
+    private boolean isTriangleMesh(Mesh mesh) {
+        Mesh.Mode mode = mesh.getMode();
+        return (mode == Mesh.Mode.Triangles || mode == Mesh.Mode.TriangleStrip || mode == Mesh.Mode.TriangleFan)
+                && mesh.getBuffer(VertexBuffer.Type.Position) != null;
+    }
+
+    private void copyPositions(Mesh mesh, Matrix4f world, float[] verts, int offset) {
+        int length = mesh.getVertexCount() * 3;
+
+        FloatBuffer buffer = mesh.getFloatBuffer(VertexBuffer.Type.Position).duplicate();
+        buffer.clear();
+        buffer.get(verts, offset, length);
+
+        if (world.isIdentity()) {
+            return;
+        }
+
+        for (int i = offset; i < offset + length; i += 3) {
+            float x = verts[i];
+            float y = verts[i + 1];
+            float z = verts[i + 2];
+            verts[i]     = world.m00 * x + world.m01 * y + world.m02 * z + world.m03;
+            verts[i + 1] = world.m10 * x + world.m11 * y + world.m12 * z + world.m13;
+            verts[i + 2] = world.m20 * x + world.m21 * y + world.m22 * z + world.m23;
+        }
+    }
+
+    private void copyIndices(Mesh mesh, int[] tris, int offset, int baseVertex) {
+        int length = mesh.getTriangleCount() * 3;
+
+        // Only a triangle list can be copied in bulk. Strips, fans and meshes
+        // without indices are converted to a list, like Mesh.getTriangle does:
+        // the buffer behind that view still holds the strip or fan indices.
+        boolean triangleList = mesh.getMode() == Mesh.Mode.Triangles && mesh.getBuffer(VertexBuffer.Type.Index) != null;
+        IndexBuffer ib = triangleList ? mesh.getIndexBuffer() : mesh.getIndicesAsList();
+
+        if (triangleList && ib.getBuffer() instanceof IntBuffer) {
+            IntBuffer buffer = ((IntBuffer) ib.getBuffer()).duplicate();
+            buffer.clear();
+            buffer.get(tris, offset, length);
+            if (baseVertex != 0) {
+                for (int i = offset; i < offset + length; i++) {
+                    tris[i] += baseVertex;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                tris[offset + i] = baseVertex + ib.get(i);
+            }
+        }
+    }
+
+    public JmeInputGeomProvider build() {
+        return extractGeometries(geometryList, null);
     }
     
     /**
@@ -143,42 +315,26 @@ public class JmeGeomProviderBuilder {
 
         results.clear();
 
-        final Map<Geometry, AreaModification> map = new HashMap<>();
-        geometryList.forEach(g -> map.put(g, defaultArea));
-
-        for (NavMeshBuildMarkup markup : markups) {
-            if (markup.root instanceof Geometry) {
-                Geometry geo = (Geometry) markup.root;
-                if (markup.ignoreFromBuild) {
-                    map.remove(geo);
-                } else if (markup.overrideArea && map.containsKey(geo)) {
-                    map.put(geo, markup.area);
-                }
-            } else if (markup.root instanceof Node) {
-                ((Node) markup.root).depthFirstTraversal(new SceneGraphVisitorAdapter() {
-                    @Override
-                    public void visit(Geometry geo) {
-                        if (markup.ignoreFromBuild) {
-                            map.remove(geo);
-                        } else if (markup.overrideArea && map.containsKey(geo)) {
-                            map.put(geo, markup.area);
-                        }
-                    }
-                });
-            }
+        // Index the markups by their root.
+        Map<Spatial, List<Integer>> markupsByRoot = new IdentityHashMap<>();
+        for (int i = 0; i < markups.size(); i++) {
+            markupsByRoot.computeIfAbsent(markups.get(i).root, k -> new ArrayList<>()).add(i);
         }
 
-        for (Map.Entry<Geometry, AreaModification> entry : map.entrySet()) {
-            NavMeshBuildSource source = new NavMeshBuildSource(entry.getKey(), entry.getValue());
-            results.add(source);
-            System.out.println(source);
+        List<Geometry> geometries = new ArrayList<>(geometryList.size());
+        for (Geometry geo : geometryList) {
+            AreaModification area = resolveArea(geo, defaultArea, markups, markupsByRoot);
+            if (area != null) {
+                geometries.add(geo);
+                results.add(new NavMeshBuildSource(geo, area));
+            }
         }
 
-        Mesh optiMesh = new Mesh();
-        GeometryBatchFactory.mergeGeometries(map.keySet(), optiMesh);
-
-        JmeInputGeomProvider geomProvider = new JmeInputGeomProvider(getVertices(optiMesh), getIndices(optiMesh));
-        results.forEach(s -> geomProvider.addModification(s));
+        JmeInputGeomProvider geomProvider = extractGeometries(geometries, results);
+        results.forEach(s -> {
+            System.out.println(s);
+            geomProvider.addModification(s);
+        });
 
         return geomProvider;
     }
@@ -3,11 +3,14 @@ package com.jme3.recast4j.geom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.recast4j.recast.AreaModification;
 import org.recast4j.recast.ConvexVolume;
+import org.recast4j.recast.Context;
 import org.recast4j.recast.RecastVectors;
 import org.recast4j.recast.geom.InputGeomProvider;
 import org.recast4j.recast.geom.TriMesh;
@@ -20,7 +23,12 @@ public class JmeInputGeomProvider implements InputGeomProvider {
 	
     public final float[] vertices;
     public final int[] faces;
-    public final float[] normals;
+    // One normal per triangle, null until computed. Recast never reads them,
+    // use getNormals() to compute them on first use.
+    private volatile float[] normals;
+    // Guards the computation of the normals, separate from the monitor used
+    // by meshes() and getTriangleAreaTable() during a build.
+    private final Object normalsLock = new Object();
 
     final float[] bmin;
     final float[] bmax;
@@ -28,6 +36,15 @@ public class JmeInputGeomProvider implements InputGeomProvider {
     final List<OffMeshLink> offMeshConnections = new ArrayList<>();
     final List<NavMeshBuildSource> listModifications = new ArrayList<>();
 
+    // Area id of each triangle, built on demand from the modifications.
+    private TriangleAreaTable areaTable;
+
+    // The TriMesh and its chunky BVH, built once on first use and shared by all tiles.
+    private volatile List<TriMesh> meshes;
+    private final AtomicLong meshRebuildsAvoided = new AtomicLong();
+    // Incremented by every change to the modifications, convex volumes and off-mesh links.
+    private volatile int modCount;
+
     /**
      * Constructor.
      * 
@@ -37,8 +54,6 @@ public class JmeInputGeomProvider implements InputGeomProvider {
     public JmeInputGeomProvider(float[] vertices, int[] faces) {
         this.vertices = vertices;
         this.faces = faces;
-        normals = new float[faces.length];
-        calculateNormals();
         bmin = new float[3];
         bmax = new float[3];
         RecastVectors.copy(bmin, vertices, 0);
@@ -49,6 +64,18 @@ public class JmeInputGeomProvider implements InputGeomProvider {
         }
     }
 
+    /**
+     * Creates a provider from precomputed bounds and normals, see GeomSnapshot.
+     * The normals may be null, they are then computed on first use.
+     */
+    JmeInputGeomProvider(float[] vertices, int[] faces, float[] normals, float[] bmin, float[] bmax) {
+        this.vertices = vertices;
+        this.faces = faces;
+        this.normals = normals;
+        this.bmin = bmin;
+        this.bmax = bmax;
+    }
+
     @Override
     public float[] getMeshBoundsMin() {
         return bmin;
@@ -71,46 +98,159 @@ public class JmeInputGeomProvider implements InputGeomProvider {
         vol.verts = verts;
         vol.areaMod = areaMod;
         convexVolumes.add(vol);
+        modCount++;
     }
     
     public void clearConvexVolumes() {
     	convexVolumes.clear();
+    	modCount++;
+    }
+
+    /**
+     * @return A counter incremented by the methods of this class that change
+     *         the modifications, convex volumes or off-mesh links. Changes made
+     *         directly on the returned lists are not counted.
+     */
+    public int getModificationCount() {
+        return modCount;
     }
 
+    /**
+     * Returns the TriMesh of this provider. The TriMesh builds its chunky BVH in
+     * the constructor, so it is created lazily once and the same immutable list
+     * is returned to every caller, from any thread. The vertices and faces
+     * arrays must not be modified once the mesh has been built.
+     */
     @Override
     public Iterable<TriMesh> meshes() {
-        return Collections.singletonList(new TriMesh(vertices, faces));
+        List<TriMesh> result = meshes;
+        if (result == null) {
+            synchronized (this) {
+                result = meshes;
+                if (result == null) {
+                    result = Collections.singletonList(new TriMesh(vertices, faces));
+                    meshes = result;
+                    return result;
+                }
+            }
+        }
+        meshRebuildsAvoided.incrementAndGet();
+        return result;
     }
 
-    public void calculateNormals() {
-        for (int i = 0; i < faces.length; i += 3) {
-            int v0 = faces[i] * 3;
-            int v1 = faces[i + 1] * 3;
-            int v2 = faces[i + 2] * 3;
-            float[] e0 = new float[3], e1 = new float[3];
-            for (int j = 0; j < 3; ++j) {
-                e0[j] = vertices[v1 + j] - vertices[v0 + j];
-                e1[j] = vertices[v2 + j] - vertices[v0 + j];
+    /**
+     * @return The number of times the cached TriMesh was returned instead of
+     *         rebuilding it.
+     */
+    public long getMeshRebuildsAvoided() {
+        return meshRebuildsAvoided.get();
+    }
+
+    /**
+     * Returns the normal of each triangle, computing them on the first call.
+     * 
+     * @return The normals, 3 floats per triangle.
+     */
+    public float[] getNormals() {
+        float[] result = normals;
+        if (result == null) {
+            synchronized (normalsLock) {
+                result = normals;
+                if (result == null) {
+                    result = calculateNormals(false);
+                }
             }
-            normals[i] = e0[1] * e1[2] - e0[2] * e1[1];
-            normals[i + 1] = e0[2] * e1[0] - e0[0] * e1[2];
-            normals[i + 2] = e0[0] * e1[1] - e0[1] * e1[0];
-            float d = (float) Math.sqrt(normals[i] * normals[i] + normals[i + 1] * normals[i + 1] + normals[i + 2] * normals[i + 2]);
-            if (d > 0) {
-                d = 1.0f / d;
-                normals[i] *= d;
-                normals[i + 1] *= d;
-                normals[i + 2] *= d;
+        }
+        return result;
+    }
+
+    /**
+     * @return The normals if already computed, null otherwise.
+     */
+    float[] getComputedNormals() {
+        return normals;
+    }
+
+    /**
+     * Computes the normal of each triangle.
+     */
+    public void calculateNormals() {
+        calculateNormals(false);
+    }
+
+    /**
+     * Computes the normal of each triangle in a single pass without temporary
+     * allocations. The parallel variant splits the triangles between the
+     * threads of the common pool, worth it on very large meshes.
+     * 
+     * @param parallel
+     * @return The normals, 3 floats per triangle.
+     */
+    public float[] calculateNormals(boolean parallel) {
+        synchronized (normalsLock) {
+            float[] result = new float[faces.length];
+            IntStream range = IntStream.range(0, faces.length / 3);
+            if (parallel) {
+                range = range.parallel();
             }
+            range.forEach(t -> calculateNormal(t * 3, result));
+            normals = result;
+            return result;
+        }
+    }
+
+    private void calculateNormal(int i, float[] out) {
+        int v0 = faces[i] * 3;
+        int v1 = faces[i + 1] * 3;
+        int v2 = faces[i + 2] * 3;
+        float e0x = vertices[v1] - vertices[v0];
+        float e0y = vertices[v1 + 1] - vertices[v0 + 1];
+        float e0z = vertices[v1 + 2] - vertices[v0 + 2];
+        float e1x = vertices[v2] - vertices[v0];
+        float e1y = vertices[v2 + 1] - vertices[v0 + 1];
+        float e1z = vertices[v2 + 2] - vertices[v0 + 2];
+        float nx = e0y * e1z - e0z * e1y;
+        float ny = e0z * e1x - e0x * e1z;
+        float nz = e0x * e1y - e0y * e1x;
+        float d = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (d > 0) {
+            d = 1.0f / d;
+            nx *= d;
+            ny *= d;
+            nz *= d;
         }
+        out[i] = nx;
+        out[i + 1] = ny;
+        out[i + 2] = nz;
     }
     
     public List<NavMeshBuildSource> getModifications() {
         return this.listModifications;
     }
 
-    public void addModification(NavMeshBuildSource mod) {
+    public synchronized void addModification(NavMeshBuildSource mod) {
         this.listModifications.add(mod);
+        areaTable = null;
+        modCount++;
+    }
+
+    /**
+     * Returns the table holding the area id of each triangle. The table is
+     * built once from the triangle ranges of the modifications and shared by
+     * all the tiles of a build. It is rebuilt only if the walkable slope or the
+     * number of modifications changes.
+     * 
+     * @param ctx
+     * @param walkableSlopeAngle
+     * @return
+     */
+    synchronized TriangleAreaTable getTriangleAreaTable(Context ctx, float walkableSlopeAngle) {
+        if (areaTable == null
+                || areaTable.walkableSlopeAngle != walkableSlopeAngle
+                || areaTable.sourceCount != listModifications.size()) {
+            areaTable = new TriangleAreaTable(ctx, walkableSlopeAngle, vertices, faces, listModifications);
+        }
+        return areaTable;
     }
     
     public List<OffMeshLink> getOffMeshConnections() {
@@ -119,9 +259,11 @@ public class JmeInputGeomProvider implements InputGeomProvider {
 
     public void addOffMeshConnection(OffMeshLink link) {
         offMeshConnections.add(link);
+        modCount++;
     }
 
     public void removeOffMeshConnections(Predicate<OffMeshLink> filter) {
         offMeshConnections.retainAll(offMeshConnections.stream().filter(c -> !filter.test(c)).collect(Collectors.toList()));
+        modCount++;
     }
 }
@@ -1,9 +1,18 @@
 package com.jme3.recast4j.geom;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.recast4j.recast.CompactHeightfield;
 import org.recast4j.recast.Context;
@@ -28,7 +37,14 @@ import org.recast4j.recast.RecastLayers;
 import org.recast4j.recast.RecastMesh;
 import org.recast4j.recast.RecastMeshDetail;
 import org.recast4j.recast.RecastRegion;
+import org.recast4j.recast.geom.ChunkyTriMesh.ChunkyTriMeshNode;
 import org.recast4j.recast.geom.InputGeomProvider;
+import org.recast4j.recast.geom.TriMesh;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.recast4j.Recast.Telemetry;
+import com.jme3.recast4j.Recast.Telemetry.Stage;
+import com.jme3.math.Vector3f;
 
 /**
  * Extends the Recast4j RecastBuilder class to allow for Area Type flag setting.
@@ -46,8 +62,33 @@ import org.recast4j.recast.geom.InputGeomProvider;
  * @author capdevon
  */
 public class JmeRecastBuilder {
+
+    /**
+     * Receives each tile as soon as it has been built. Called from the worker
+     * thread that built the tile, so implementations must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface TileBuildConsumer {
+        void onTileBuilt(int tx, int ty, RecastBuilderResult result);
+    }
     
+    // Measures the bytes allocated by each tile, null if not supported by the JVM.
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = getThreadBean();
+
     private final RecastBuilderProgressListener progressListener;
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder measuredTiles = new LongAdder();
+    // Receives the stage timers of the builds. [opt]
+    private Telemetry telemetry;
+    
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
     
     public JmeRecastBuilder() {
         this.progressListener = null;
@@ -64,6 +105,20 @@ public class JmeRecastBuilder {
         this.progressListener = progressListener;
     }
 
+    public Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Sets the Telemetry used as Recast Context by the builds, to time each
+     * stage of every tile. Pass null to build without measuring.
+     * 
+     * @param telemetry
+     */
+    public void setTelemetry(Telemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
     /**
      * Builds the polymesh and detailmesh by creating tiles.
      * 
@@ -82,7 +137,7 @@ public class JmeRecastBuilder {
         if (threads == 1) {
             result = buildSingleThread(geom, cfg, bmin, bmax, tw, th);
         } else {
-            result = buildMultiThread(geom, cfg, bmin, bmax, tw, th, threads);
+            result = buildMultiThread(geom, cfg, threads);
         }
         return result;
     }
@@ -92,35 +147,284 @@ public class JmeRecastBuilder {
         AtomicInteger counter = new AtomicInteger();
         for (int x = 0; x < tw; ++x) {
             for (int y = 0; y < th; ++y) {
-                result[x][y] = buildTile(geom, cfg, bmin, bmax, x, y, counter, tw * th);
+                result[x][y] = buildTile(geom, cfg, bmin, bmax, x, y, counter, tw * th, false);
             }
         }
         return result;
     }
 
-    private RecastBuilderResult[][] buildMultiThread(JmeInputGeomProvider geom, RecastConfig cfg, float[] bmin, float[] bmax, int tw, int th, int threads) {
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
-        RecastBuilderResult[][] result = new RecastBuilderResult[tw][th];
+    private RecastBuilderResult[][] buildMultiThread(JmeInputGeomProvider geom, RecastConfig cfg, int threads) {
+        ForkJoinPool executor = new ForkJoinPool(threads);
+        try {
+            return awaitTiles(buildTilesAsync(geom, cfg, executor, threads, null));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Builds the tiles using the supplied executor and blocks until all the
+     * tiles are done.
+     * 
+     * @param geom The geometry to be used for constructing the meshes.
+     * @param cfg The configuration parameters to be used for constructing the meshes.
+     * @param executor The executor running the build, a ForkJoinPool is recommended.
+     * @return The build results.
+     */
+    public RecastBuilderResult[][] buildTiles(JmeInputGeomProvider geom, RecastConfig cfg, Executor executor) {
+        return awaitTiles(buildTilesAsync(geom, cfg, executor, getParallelism(executor), null));
+    }
+
+    /**
+     * Builds the tiles in the background without blocking the caller. 
+     * <p>
+     * The tiles are sorted by the number of triangles they overlap and the 
+     * largest tiles are scheduled first. Each worker pulls the next tile from 
+     * the shared queue as soon as it is idle, so the load balances itself.
+     * <p>
+     * The first tile that fails completes the returned future exceptionally and
+     * stops the remaining workers. Cancelling the returned future stops the 
+     * workers after the tile they are currently building.
+     * 
+     * @param geom The geometry to be used for constructing the meshes.
+     * @param cfg The configuration parameters to be used for constructing the meshes.
+     * @param executor The executor running the build, a ForkJoinPool is recommended.
+     * @param consumer Receives every tile as soon as it is done. [opt]
+     * @return The handle of the build job.
+     */
+    public CompletableFuture<RecastBuilderResult[][]> buildTilesAsync(JmeInputGeomProvider geom, RecastConfig cfg, 
+            Executor executor, TileBuildConsumer consumer) {
+        return buildTilesAsync(geom, cfg, executor, getParallelism(executor), consumer);
+    }
+
+    private CompletableFuture<RecastBuilderResult[][]> buildTilesAsync(JmeInputGeomProvider geom, RecastConfig cfg, 
+            Executor executor, int parallelism, TileBuildConsumer consumer) {
+        int[] twh = Recast.calcTileCount(geom.getMeshBoundsMin(), geom.getMeshBoundsMax(), cfg.cs, cfg.tileSize);
+        RecastBuilderResult[][] result = new RecastBuilderResult[twh[0]][twh[1]];
+        TileBuildConsumer collector = (tx, ty, tile) -> {
+            result[tx][ty] = tile;
+            if (consumer != null) {
+                consumer.onTileBuilt(tx, ty, tile);
+            }
+        };
+        return scheduleTiles(geom, cfg, executor, parallelism, collector, false, new CompletableFuture<>(), result);
+    }
+
+    /**
+     * Builds the tiles in the background and hands each one to the consumer
+     * without keeping any reference to it.
+     * <p>
+     * Unlike {@link #buildTilesAsync} the RecastBuilderResult grid is not 
+     * retained: the heightfields, contours and meshes of a tile can be 
+     * collected as soon as the consumer returns, so the peak memory depends on
+     * the number of workers instead of the number of tiles. Each worker reuses
+     * its heightfield between tiles, so the solid heightfield of a result is 
+     * only valid until the consumer returns.
+     * 
+     * @param geom The geometry to be used for constructing the meshes.
+     * @param cfg The configuration parameters to be used for constructing the meshes.
+     * @param executor The executor running the build, a ForkJoinPool is recommended.
+     * @param consumer Receives every tile as soon as it is done.
+     * @return The handle of the build job.
+     */
+    public CompletableFuture<Void> streamTilesAsync(JmeInputGeomProvider geom, RecastConfig cfg, 
+            Executor executor, TileBuildConsumer consumer) {
+        return scheduleTiles(geom, cfg, executor, getParallelism(executor), consumer, true, new CompletableFuture<>(), null);
+    }
+
+    private <T> CompletableFuture<T> scheduleTiles(JmeInputGeomProvider geom, RecastConfig cfg, 
+            Executor executor, int parallelism, TileBuildConsumer consumer, boolean transientResults, CompletableFuture<T> future, T value) {
+        float[] bmin = geom.getMeshBoundsMin();
+        float[] bmax = geom.getMeshBoundsMax();
+        int[] twh = Recast.calcTileCount(bmin, bmax, cfg.cs, cfg.tileSize);
+        int tw = twh[0];
+        int th = twh[1];
+        int total = tw * th;
+
+        if (total == 0) {
+            future.complete(value);
+            return future;
+        }
+
+        int[] tiles = sortTilesByTriangleCount(geom, cfg, bmin, bmax, tw, th);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(total);
         AtomicInteger counter = new AtomicInteger();
-        for (int x = 0; x < tw; ++x) {
-            for (int y = 0; y < th; ++y) {
-                final int tx = x;
-                final int ty = y;
-                executor.submit((Runnable) () -> {
-                    result[tx][ty] = buildTile(geom, cfg, bmin, bmax, tx, ty, counter, tw * th);
-                });
+
+        Runnable worker = () -> {
+            int i;
+            while (!future.isDone() && (i = next.getAndIncrement()) < total) {
+                int tx = tiles[i] / th;
+                int ty = tiles[i] % th;
+                try {
+                    RecastBuilderResult tile = buildTile(geom, cfg, bmin, bmax, tx, ty, counter, total, transientResults);
+                    consumer.onTileBuilt(tx, ty, tile);
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                    return;
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    future.complete(value);
+                }
+            }
+        };
+
+        int workers = Math.max(1, Math.min(parallelism, total));
+        for (int w = 0; w < workers; w++) {
+            try {
+                executor.execute(worker);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                break;
             }
         }
-        executor.shutdown();
+        return future;
+    }
+
+    private RecastBuilderResult[][] awaitTiles(CompletableFuture<RecastBuilderResult[][]> future) {
         try {
-            executor.awaitTermination(1000, TimeUnit.HOURS);
+            return future.get();
         } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Tile build interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Tile build failed", cause);
         }
-        return result;
     }
 
-    private RecastBuilderResult buildTile(JmeInputGeomProvider geom, RecastConfig cfg, float[] bmin, float[] bmax, final int tx, final int ty, AtomicInteger counter, int total) {
-        RecastBuilderResult result = build(geom, new RecastBuilderConfig(cfg, bmin, bmax, tx, ty, true));
+    private int getParallelism(Executor executor) {
+        if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool) executor).getParallelism();
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the tile indices (tx * th + ty) sorted by the number of triangles
+     * overlapping each tile, largest first.
+     */
+    private int[] sortTilesByTriangleCount(JmeInputGeomProvider geom, RecastConfig cfg, float[] bmin, float[] bmax, int tw, int th) {
+        int total = tw * th;
+        int[] triCount = countTriangles(geom, cfg, bmin, bmax, tw, th);
+
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> triCount[i]).reversed());
+
+        int[] tiles = new int[total];
+        for (int i = 0; i < total; i++) {
+            tiles[i] = order[i];
+        }
+        return tiles;
+    }
+
+    /**
+     * Returns the number of triangles overlapping each tile (tx * th + ty),
+     * including the tile border. A GridInputGeomProvider built for the config
+     * answers from the sizes of its cells, which may count a triangle spanning
+     * several cells more than once; the other providers walk the chunks of
+     * their meshes.
+     */
+    public static int[] countTriangles(JmeInputGeomProvider geom, RecastConfig cfg, float[] bmin, float[] bmax, int tw, int th) {
+        int[] triCount = new int[tw * th];
+
+        if (geom instanceof GridInputGeomProvider && ((GridInputGeomProvider) geom).matches(cfg)) {
+            GridInputGeomProvider grid = (GridInputGeomProvider) geom;
+            for (int x = 0; x < tw; ++x) {
+                for (int y = 0; y < th; ++y) {
+                    RecastBuilderConfig builderCfg = new RecastBuilderConfig(cfg, bmin, bmax, x, y, true);
+                    triCount[x * th + y] = grid.countTrianglesOverlapping(builderCfg.bmin, builderCfg.bmax);
+                }
+            }
+            return triCount;
+        }
+
+        float[] tbmin = new float[2];
+        float[] tbmax = new float[2];
+        for (TriMesh mesh : geom.meshes()) {
+            for (int x = 0; x < tw; ++x) {
+                for (int y = 0; y < th; ++y) {
+                    RecastBuilderConfig builderCfg = new RecastBuilderConfig(cfg, bmin, bmax, x, y, true);
+                    tbmin[0] = builderCfg.bmin[0];
+                    tbmin[1] = builderCfg.bmin[2];
+                    tbmax[0] = builderCfg.bmax[0];
+                    tbmax[1] = builderCfg.bmax[2];
+                    for (ChunkyTriMeshNode node : mesh.getChunksOverlappingRect(tbmin, tbmax)) {
+                        triCount[x * th + y] += node.tris.length / 3;
+                    }
+                }
+            }
+        }
+        return triCount;
+    }
+
+    /**
+     * Returns the coordinates of the tiles affected by a change of geometry 
+     * inside the supplied world bounds. Each box is expanded by the tile border
+     * size, since the voxelization of a tile also samples the geometry of its 
+     * neighbours.
+     * 
+     * @param bmin The minimum bounds of the tiled grid.
+     * @param bmax The maximum bounds of the tiled grid.
+     * @param cfg The configuration parameters used to build the tiles.
+     * @param dirtyBounds The world bounds of the changed geometry.
+     * @return The list of {tx, ty} tile coordinates, without duplicates.
+     */
+    public List<int[]> getTilesOverlapping(float[] bmin, float[] bmax, RecastConfig cfg, List<BoundingBox> dirtyBounds) {
+        int[] twh = Recast.calcTileCount(bmin, bmax, cfg.cs, cfg.tileSize);
+        int tw = twh[0];
+        int th = twh[1];
+        float tileWorldSize = cfg.tileSize * cfg.cs;
+        float border = cfg.borderSize * cfg.cs;
+
+        boolean[] dirty = new boolean[tw * th];
+        List<int[]> tiles = new ArrayList<>();
+        Vector3f min = new Vector3f();
+        Vector3f max = new Vector3f();
+
+        for (BoundingBox box : dirtyBounds) {
+            box.getMin(min);
+            box.getMax(max);
+            int tx0 = Math.max(0, (int) Math.floor((min.x - border - bmin[0]) / tileWorldSize));
+            int ty0 = Math.max(0, (int) Math.floor((min.z - border - bmin[2]) / tileWorldSize));
+            int tx1 = Math.min(tw - 1, (int) Math.floor((max.x + border - bmin[0]) / tileWorldSize));
+            int ty1 = Math.min(th - 1, (int) Math.floor((max.z + border - bmin[2]) / tileWorldSize));
+
+            for (int x = tx0; x <= tx1; ++x) {
+                for (int y = ty0; y <= ty1; ++y) {
+                    if (!dirty[x * th + y]) {
+                        dirty[x * th + y] = true;
+                        tiles.add(new int[] { x, y });
+                    }
+                }
+            }
+        }
+        return tiles;
+    }
+
+    private RecastBuilderResult buildTile(JmeInputGeomProvider geom, RecastConfig cfg, float[] bmin, float[] bmax, final int tx, final int ty, 
+            AtomicInteger counter, int total, boolean transientResult) {
+        RecastBuilderConfig builderCfg = new RecastBuilderConfig(cfg, bmin, bmax, tx, ty, true);
+        if (telemetry != null) {
+            telemetry.beginTile(tx, ty);
+        }
+        RecastBuilderResult result;
+        try {
+            result = transientResult ? buildTransient(geom, builderCfg) : build(geom, builderCfg);
+        } finally {
+            if (telemetry != null) {
+                telemetry.endTile();
+            }
+        }
         if (this.progressListener != null) {
             this.progressListener.onProgress(counter.incrementAndGet(), total);
         }
@@ -128,19 +432,86 @@ public class JmeRecastBuilder {
     }
     
     public RecastBuilderResult build(JmeInputGeomProvider geom, RecastBuilderConfig builderCfg) {
+        return build(geom, builderCfg, null);
+    }
+
+    /**
+     * Builds a tile reusing the scratch buffers of the calling thread, so a 
+     * worker building many tiles allocates a single heightfield grid. Use it 
+     * when the result is consumed right away: the solid heightfield of the 
+     * result is cleared by the next transient build on the same thread.
+     * 
+     * @param geom
+     * @param builderCfg
+     * @return
+     */
+    public RecastBuilderResult buildTransient(JmeInputGeomProvider geom, RecastBuilderConfig builderCfg) {
+        return build(geom, builderCfg, TileScratch.get());
+    }
+
+    private RecastBuilderResult build(JmeInputGeomProvider geom, RecastBuilderConfig builderCfg, TileScratch scratch) {
+
+        long startBytes = getThreadAllocatedBytes();
 
         RecastConfig cfg = builderCfg.cfg;
-        Context ctx = new Context();
+        Context ctx = telemetry != null ? telemetry : new Context();
         //
         // Step 1. Rasterize input polygon soup.
         //
-        Heightfield solid = JmeRecastVoxelization.buildSolidHeightfield(geom, builderCfg, ctx);
-        return build(builderCfg.borderSize, builderCfg.buildMeshDetail, geom, cfg, solid, ctx);
+        startTimer(Stage.RASTERIZE);
+        Heightfield solid = JmeRecastVoxelization.buildSolidHeightfield(geom, builderCfg, ctx, scratch);
+        stopTimer(Stage.RASTERIZE);
+        RecastBuilderResult result = build(builderCfg.borderSize, builderCfg.buildMeshDetail, geom, cfg, solid, ctx);
+
+        if (telemetry != null) {
+            telemetry.setTileCounts(result.getCompactHeightfield().spanCount, result.getMesh().npolys);
+        }
+
+        if (startBytes >= 0) {
+            allocatedBytes.add(getThreadAllocatedBytes() - startBytes);
+            measuredTiles.increment();
+        }
+        return result;
+    }
+
+    /**
+     * @return The average number of bytes allocated by the tiles built so 
+     *         far, or -1 if the JVM cannot measure it.
+     */
+    public long getAllocatedBytesPerTile() {
+        long tiles = measuredTiles.sum();
+        return tiles > 0 ? allocatedBytes.sum() / tiles : -1;
+    }
+
+    public void resetBuildStats() {
+        allocatedBytes.reset();
+        measuredTiles.reset();
+    }
+
+    private void startTimer(Stage stage) {
+        if (telemetry != null) {
+            telemetry.startTimer(stage);
+        }
+    }
+
+    private void stopTimer(Stage stage) {
+        if (telemetry != null) {
+            telemetry.stopTimer(stage);
+        }
+    }
+
+    private static long getThreadAllocatedBytes() {
+        if (THREAD_BEAN != null && THREAD_BEAN.isThreadAllocatedMemoryEnabled()) {
+            return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
     }
     
     public RecastBuilderResult build(int borderSize, boolean buildMeshDetail, InputGeomProvider geom, RecastConfig cfg, Heightfield solid, Context ctx) {
     	
+        startTimer(Stage.FILTER);
     	filterHeightfield(solid, cfg, ctx);
+        stopTimer(Stage.FILTER);
     	CompactHeightfield chf = buildCompactHeightfield(geom, cfg, ctx, solid);
 
         // Partition the heightfield so that we can use simple algorithm later
@@ -184,28 +555,43 @@ public class JmeRecastBuilder {
         if (cfg.partitionType == PartitionType.WATERSHED) {
             // Prepare for region partitioning, by calculating distance field
             // along the walkable surface.
+            startTimer(Stage.DISTANCE_FIELD);
             RecastRegion.buildDistanceField(ctx, chf);
+            stopTimer(Stage.DISTANCE_FIELD);
             // Partition the walkable surface into simple regions without holes.
+            startTimer(Stage.REGIONS);
             RecastRegion.buildRegions(ctx, chf, borderSize, cfg.minRegionArea, cfg.mergeRegionArea);
+            stopTimer(Stage.REGIONS);
         } else if (cfg.partitionType == PartitionType.MONOTONE) {
             // Partition the walkable surface into simple regions without holes.
             // Monotone partitioning does not need distancefield.
+            startTimer(Stage.REGIONS);
             RecastRegion.buildRegionsMonotone(ctx, chf, borderSize, cfg.minRegionArea, cfg.mergeRegionArea);
+            stopTimer(Stage.REGIONS);
         } else {
             // Partition the walkable surface into simple regions without holes.
+            startTimer(Stage.REGIONS);
             RecastRegion.buildLayerRegions(ctx, chf, borderSize, cfg.minRegionArea);
+            stopTimer(Stage.REGIONS);
         }
 
         // Step 5. Trace and simplify region contours.
+        startTimer(Stage.CONTOURS);
         ContourSet cset = RecastContour.buildContours(ctx, chf, cfg.maxSimplificationError, cfg.maxEdgeLen, RecastConstants.RC_CONTOUR_TESS_WALL_EDGES);
+        stopTimer(Stage.CONTOURS);
 
         // Step 6. Build polygons mesh from contours.
+        startTimer(Stage.POLYMESH);
         PolyMesh pmesh = RecastMesh.buildPolyMesh(ctx, cset, cfg.maxVertsPerPoly);
+        stopTimer(Stage.POLYMESH);
 
         // Step 7. Create detail mesh which allows to access approximate height on each polygon.
-        PolyMeshDetail dmesh = buildMeshDetail
-                ? RecastMeshDetail.buildPolyMeshDetail(ctx, pmesh, chf, cfg.detailSampleDist, cfg.detailSampleMaxError)
-                : null;
+        PolyMeshDetail dmesh = null;
+        if (buildMeshDetail) {
+            startTimer(Stage.DETAIL_MESH);
+            dmesh = RecastMeshDetail.buildPolyMeshDetail(ctx, pmesh, chf, cfg.detailSampleDist, cfg.detailSampleMaxError);
+            stopTimer(Stage.DETAIL_MESH);
+        }
         return new RecastBuilder().new RecastBuilderResult(solid, chf, cset, pmesh, dmesh);
     }
     
@@ -235,20 +621,43 @@ public class JmeRecastBuilder {
         // Compact the heightfield so that it is faster to handle from now on.
         // This will result more cache coherent data as well as the neighbours
         // between walkable cells will be calculated.
+        startTimer(Stage.COMPACT);
         CompactHeightfield chf = Recast.buildCompactHeightfield(ctx, cfg.walkableHeight, cfg.walkableClimb, solid);
+        stopTimer(Stage.COMPACT);
 
         // Erode the walkable area by agent radius.
+        startTimer(Stage.ERODE);
         RecastArea.erodeWalkableArea(ctx, cfg.walkableRadius, chf);
+        stopTimer(Stage.ERODE);
         // (Optional) Mark areas.
+        startTimer(Stage.MARK_VOLUMES);
         for (ConvexVolume vol : geomProvider.convexVolumes()) {
             RecastArea.markConvexPolyArea(ctx, vol.verts, vol.hmin, vol.hmax, vol.areaMod, chf);
         }
+        stopTimer(Stage.MARK_VOLUMES);
         return chf;
     }
 
     public HeightfieldLayerSet buildLayers(JmeInputGeomProvider geom, RecastBuilderConfig builderCfg) {
+        return buildLayers(geom, builderCfg, null);
+    }
+
+    /**
+     * Builds the layers of a tile reusing the heightfield and rasterization 
+     * buffers of the calling thread. The layers do not reference the 
+     * heightfield, so they stay valid after the next build.
+     * 
+     * @param geom
+     * @param builderCfg
+     * @return
+     */
+    public HeightfieldLayerSet buildLayersTransient(JmeInputGeomProvider geom, RecastBuilderConfig builderCfg) {
+        return buildLayers(geom, builderCfg, TileScratch.get());
+    }
+
+    private HeightfieldLayerSet buildLayers(JmeInputGeomProvider geom, RecastBuilderConfig builderCfg, TileScratch scratch) {
         Context ctx = new Context();
-        Heightfield solid = JmeRecastVoxelization.buildSolidHeightfield(geom, builderCfg, ctx);
+        Heightfield solid = JmeRecastVoxelization.buildSolidHeightfield(geom, builderCfg, ctx, scratch);
         filterHeightfield(solid, builderCfg.cfg, ctx);
         CompactHeightfield chf = buildCompactHeightfield(geom, builderCfg.cfg, ctx, solid);
         return RecastLayers.buildHeightfieldLayers(ctx, chf, builderCfg.borderSize, builderCfg.cfg.walkableHeight);
@@ -1,7 +1,5 @@
 package com.jme3.recast4j.geom;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.recast4j.recast.Context;
@@ -27,11 +25,27 @@ public class JmeRecastVoxelization {
 	 * @return
 	 */
     public static Heightfield buildSolidHeightfield(JmeInputGeomProvider geomProvider, RecastBuilderConfig builderCfg, Context ctx) {
+        return buildSolidHeightfield(geomProvider, builderCfg, ctx, null);
+    }
+
+    /**
+     * 
+     * @param geomProvider
+     * @param builderCfg
+     * @param ctx
+     * @param scratch      The buffers of the calling worker, reused between
+     *                     tiles. The heightfield is then only valid until the
+     *                     next tile built by the same thread. [opt]
+     * @return
+     */
+    static Heightfield buildSolidHeightfield(JmeInputGeomProvider geomProvider, RecastBuilderConfig builderCfg, Context ctx, TileScratch scratch) {
     	
         RecastConfig cfg = builderCfg.cfg;
 
         // Allocate voxel heightfield where we rasterize our input data to.
-        Heightfield solid = new Heightfield(builderCfg.width, builderCfg.height, builderCfg.bmin, builderCfg.bmax, cfg.cs, cfg.ch);
+        Heightfield solid = scratch != null
+                ? scratch.heightfield(builderCfg)
+                : new Heightfield(builderCfg.width, builderCfg.height, builderCfg.bmin, builderCfg.bmax, cfg.cs, cfg.ch);
 
         // Allocate array that can hold triangle area types.
         // If you have multiple meshes you need to process, allocate
@@ -43,32 +57,27 @@ public class JmeRecastVoxelization {
         // If your input data is multiple meshes, you can transform them here,
         // calculate
         // the are type for each of the meshes and rasterize them.
+        boolean tiled = cfg.tileSize > 0;
+
+        if (tiled && geomProvider instanceof GridInputGeomProvider
+                && ((GridInputGeomProvider) geomProvider).matches(cfg)) {
+            rasterizeGrid((GridInputGeomProvider) geomProvider, builderCfg, solid, ctx, scratch != null ? scratch : new TileScratch());
+            return solid;
+        }
+
+        /**
+         * The area id of each triangle is computed once per provider, using the
+         * geometry length and AreaModification of each NavMeshBuildSource. See
+         * TriangleAreaTable.
+         */
+        TriangleAreaTable areaTable = geomProvider.getModifications().isEmpty()
+                ? null
+                : geomProvider.getTriangleAreaTable(ctx, cfg.walkableSlopeAngle);
+
         for (TriMesh geom : geomProvider.meshes()) {
             float[] verts = geom.getVerts();
             int[] tris = geom.getTris();
             int ntris = tris.length / 3;
-            boolean tiled = cfg.tileSize > 0;
-            
-            /**
-             * Sort triangle indices into group arrays using the supplied 
-             * Modification geometry length so we can mark Area Type.
-             * 
-             * This listAreaTris will hold a copy of each areas indices as a 
-             * separate array.
-             * 
-             * Each array has a AreaModification that can be accessed from the
-             * Modification getMod() method using the index of the array held
-             * in listAreaTris.
-             */            
-            List<int[]> listTriIndices = new ArrayList<>();
-            int fromIndex = 0;
-
-            for (NavMeshBuildSource sourceObj : geomProvider.getModifications()) {
-                int[] triangles = new int[sourceObj.getGeomLength()];
-                System.arraycopy(tris, fromIndex, triangles, 0, sourceObj.getGeomLength());
-                listTriIndices.add(triangles);
-                fromIndex += sourceObj.getGeomLength();
-            }
             
             if (tiled) {
                 float[] tbmin = new float[2];
@@ -79,144 +88,39 @@ public class JmeRecastVoxelization {
                 tbmax[1] = builderCfg.bmax[2];
                 
                 List<ChunkyTriMeshNode> nodes = geom.getChunksOverlappingRect(tbmin, tbmax);
+                int[] m_triareas = null;
                 
                 for (ChunkyTriMeshNode node : nodes) {
                     int[] node_tris = node.tris;
                     int node_ntris = node_tris.length / 3;
                     
-                    if (!listTriIndices.isEmpty()) {
+                    if (areaTable != null) {
                         /**
-                         * With listTriIndices we have arrays of indices whose 
-                         * position/index in listTriIndices matches the index of 
-                         * geomProviders list of Modifications position/index. 
-                         * 
-                         * We cycle through each nodes triangles, in the same 
-                         * order they are found, looking for a matching triangle 
-                         * in one of the arrays.
-                         *
-                         * We mark any found triangles area using the index of 
-                         * the array found in listTriIndices and add them to the
-                         * list of marked triangles.
-                         * 
-                         * Last, we merge all marked triangles into one array for 
-                         * Rasterization.
+                         * Look up the area id of each node triangle in the table 
+                         * and mark the whole node in one pass. The areas array 
+                         * is reused between the nodes of this tile, and between
+                         * tiles when a scratch is supplied.
                          */
-                        List<Integer> listMarkedTris = new ArrayList<>();
-                        int[] nodeTri = new int[3];
-                        int[] areaTri = new int[3];
-
-                        for (int i = 0; i < node_ntris; i++) {
-
-                            //Create a triangle from the node.
-                            nodeTri[0] = node_tris[i*3];
-                            nodeTri[1] = node_tris[i*3+1];
-                            nodeTri[2] = node_tris[i*3+2];
-
-                            //Cycle through each array.
-                            for (int[] areaTris: listTriIndices) {
-                                /**
-                                 * If no triangle is found in this array of 
-                                 * indices we will move onto the next array, and 
-                                 * the next, until we find a match.
-                                 */
-                                boolean found = false;
-
-                                //Cycle through each areas indices.
-                                for (int j = 0; j < areaTris.length/3; j++) {
-
-                                    //Create triangle from the array.
-                                    areaTri[0] = areaTris[j*3];
-                                    areaTri[1] = areaTris[j*3+1];
-                                    areaTri[2] = areaTris[j*3+2];
-
-                                    /**
-                                     * If we find a matching triangle in this 
-                                     * array, we are done.
-                                     */
-                                    if (Arrays.equals(nodeTri, areaTri)) {
-                                        found = true;
-                                        break;
-                                    }
-                                }
-
-                                /**
-                                 * We found that nodeTri matched areaTri so mark 
-                                 * Area Type which is represented by its 
-                                 * areaTris index. 
-                                 * 
-                                 * This is a single triangle we are passing to 
-                                 * markWalkableTriangles. 
-                                 * 
-                                 * We then break out of the loop to advance to 
-                                 * the next node triangle to check. If no match 
-                                 * was found for this group, we check the next 
-                                 * array and continue the search. 
-                                 */
-                                if (found) {
-                                    //Mark single triangle.
-                                    int[] m_triareas = Recast.markWalkableTriangles(
-                                            ctx, 
-                                            cfg.walkableSlopeAngle, 
-                                            verts, 
-                                            nodeTri, 
-                                            nodeTri.length/3,
-                                            geomProvider.getModifications().get(listTriIndices.indexOf(areaTris)).getAreaModification());
-
-                                    /**
-                                     * Add marked triangle to the listMarkedTris.
-                                     * We passed in a single triangle so there 
-                                     * is only one element in the array.
-                                     */
-                                    listMarkedTris.add(m_triareas[0]);
-                                    break;
-                                }
-                            }
+                        if (m_triareas == null || m_triareas.length < node_ntris) {
+                            m_triareas = scratch != null ? scratch.areas(node_ntris) : new int[node_ntris];
                         }
-
-                        //Prepare a new array to combine all marked triangles.
-                        int[] mergeArea = new int[node_ntris];
-                        //Copy each marked triangle into the new array.
-                        for (int i = 0; i < mergeArea.length; i++) {
-                            mergeArea[i] = listMarkedTris.get(i);
-                        }   
-
-                        RecastRasterization.rasterizeTriangles(ctx, verts, node_tris, mergeArea, node_ntris, solid, cfg.walkableClimb);
+                        areaTable.markTriangles(node_tris, node_ntris, m_triareas);
+                        RecastRasterization.rasterizeTriangles(ctx, verts, node_tris, m_triareas, node_ntris, solid, cfg.walkableClimb);
                         
                     } else {
                         //Mark all triangles  with a single AreaModification from cfg.
-                        int[] m_triareas = Recast.markWalkableTriangles(ctx, cfg.walkableSlopeAngle, verts, node_tris, node_ntris, cfg.walkableAreaMod);
-                        RecastRasterization.rasterizeTriangles(ctx, verts, node_tris, m_triareas, node_ntris, solid, cfg.walkableClimb);
+                        int[] areas = Recast.markWalkableTriangles(ctx, cfg.walkableSlopeAngle, verts, node_tris, node_ntris, cfg.walkableAreaMod);
+                        RecastRasterization.rasterizeTriangles(ctx, verts, node_tris, areas, node_ntris, solid, cfg.walkableClimb);
                     }
                 }
             } else {
 
-                if (!listTriIndices.isEmpty()) {
+                if (areaTable != null) {
                     /**
-                     * Set the Area Type for each triangle. Since this is one 
-                     * mesh, the AreaModification can be applied directly to the 
-                     * array found in listTriIndices.
+                     * Since this is one mesh, the area ids of the table are 
+                     * already in triangle order.
                      */
-                    List<int[]> listMarkedTris = new ArrayList<>();
-                    for (NavMeshBuildSource sourceObj : geomProvider.getModifications()) {
-                        int[] m_triareas = Recast.markWalkableTriangles(ctx, 
-                                cfg.walkableSlopeAngle, 
-                                verts, 
-                                listTriIndices.get(geomProvider.getModifications().indexOf(sourceObj)), 
-                                listTriIndices.get(geomProvider.getModifications().indexOf(sourceObj)).length/3, 
-                                sourceObj.getAreaModification());
-                        listMarkedTris.add(m_triareas);
-                    }                 
-
-                    //Prepare a new array to combine all marked triangles.
-                    int[] mergeArea = new int[ntris];
-                    int length = 0;
-                    //Copy each marked triangle into the new array.
-                    for (int[] area: listMarkedTris) {
-                        System.arraycopy(area, 0, mergeArea, length, area.length);
-                        length += area.length;
-                    }
-
-                    RecastRasterization.rasterizeTriangles(ctx, verts, tris, mergeArea, ntris, solid, cfg.walkableClimb);
+                    RecastRasterization.rasterizeTriangles(ctx, verts, tris, areaTable.areas, ntris, solid, cfg.walkableClimb);
 
                 } else {
                     //Mark all triangles  with a single AreaModification from cfg.                    
@@ -229,4 +133,28 @@ public class JmeRecastVoxelization {
         return solid;
     }
 
+    /**
+     * Rasterizes only the triangles bucketed in the cells overlapping the
+     * border-expanded bounds of the tile, with their precomputed area ids.
+     */
+    private static void rasterizeGrid(GridInputGeomProvider geomProvider, RecastBuilderConfig builderCfg, Heightfield solid, Context ctx, TileScratch scratch) {
+        RecastConfig cfg = builderCfg.cfg;
+        float[] verts = geomProvider.vertices;
+        int[] faces = geomProvider.faces;
+
+        int ntris = geomProvider.getTrianglesOverlapping(builderCfg.bmin, builderCfg.bmax, scratch);
+        int[] triangles = scratch.triangles(ntris);
+        int[] tris = scratch.tris(ntris);
+        int[] areas = scratch.areas(ntris);
+        for (int i = 0; i < ntris; i++) {
+            int t = triangles[i];
+            tris[i * 3] = faces[t * 3];
+            tris[i * 3 + 1] = faces[t * 3 + 1];
+            tris[i * 3 + 2] = faces[t * 3 + 2];
+            areas[i] = geomProvider.triAreas[t];
+        }
+
+        RecastRasterization.rasterizeTriangles(ctx, verts, tris, areas, ntris, solid, cfg.walkableClimb);
+    }
+
 }
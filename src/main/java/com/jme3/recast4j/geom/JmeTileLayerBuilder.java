@@ -26,46 +26,205 @@
  */
 package com.jme3.recast4j.geom;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.recast4j.detour.DetourCommon;
 import org.recast4j.detour.tilecache.AbstractTileLayersBuilder;
 import org.recast4j.detour.tilecache.TileCacheBuilder;
+import org.recast4j.detour.tilecache.TileCacheCompressor;
 import org.recast4j.detour.tilecache.TileCacheLayerHeader;
+import org.recast4j.detour.tilecache.io.TileCacheLayerHeaderWriter;
+import org.recast4j.detour.tilecache.io.compress.TileCacheCompressorFactory;
 import org.recast4j.recast.HeightfieldLayerSet;
 import org.recast4j.recast.HeightfieldLayerSet.HeightfieldLayer;
 import org.recast4j.recast.Recast;
 import org.recast4j.recast.RecastBuilderConfig;
 import org.recast4j.recast.RecastConfig;
 
+import com.jme3.recast4j.Detour.TileCache.TileCacheCompression;
+
 /**
  * Uses the JmeInputGeomProvider to build layers for the tile cache. Calls the
  * RecastBuilder that accepts the jmeInputGeomProvider to build the
  * HeightFiield.
+ * <p>
+ * The tiles can be built in parallel with {@link #stream(ByteOrder, boolean, int)},
+ * on a worker pool shared by the builders using the same number of threads.
+ * Each worker thread keeps its own JmeRecastBuilder, compressor and buffers,
+ * and the triangles are bucketed once per tile through a GridInputGeomProvider.
+ * The compression ratio and build time of every tile are recorded, see
+ * {@link #getTileStats()}.
  * 
  * @author Robert
  */
 public class JmeTileLayerBuilder extends AbstractTileLayersBuilder {
 
+    /**
+     * Build statistics of a tile.
+     */
+    public static class TileLayerStats {
+        public final int tx;
+        public final int ty;
+        public final int layers;
+        // Size of the uncompressed layer grids (heights, areas, cons).
+        public final int rawBytes;
+        // Size of the compressed layers, headers included.
+        public final int compressedBytes;
+        public final long nanos;
+
+        TileLayerStats(int tx, int ty, int layers, int rawBytes, int compressedBytes, long nanos) {
+            this.tx = tx;
+            this.ty = ty;
+            this.layers = layers;
+            this.rawBytes = rawBytes;
+            this.compressedBytes = compressedBytes;
+            this.nanos = nanos;
+        }
+
+        public float getCompressionRatio() {
+            return compressedBytes > 0 ? (float) rawBytes / compressedBytes : 0;
+        }
+
+        public float getMillis() {
+            return nanos / 1e6f;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Tile (%d, %d): %d layers, %d -> %d bytes (%.2fx), %.2f ms",
+                    tx, ty, layers, rawBytes, compressedBytes, getCompressionRatio(), getMillis());
+        }
+    }
+
+    /**
+     * The builder, compressor and buffers of a worker thread.
+     */
+    private static class LayerWorker {
+        final JmeRecastBuilder rcBuilder = new JmeRecastBuilder();
+        final TileCacheBuilder tcBuilder = new TileCacheBuilder();
+        final TileCacheLayerHeaderWriter headerWriter = new TileCacheLayerHeaderWriter();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        TileCacheCompressor compressor;
+        Supplier<TileCacheCompressor> compression;
+        boolean cCompatibility;
+        byte[] grid = new byte[0];
+
+        TileCacheCompressor compressor(Supplier<TileCacheCompressor> compression, boolean cCompatibility) {
+            if (compressor == null || this.compression != compression || this.cCompatibility != cCompatibility) {
+                compressor = compression != null ? compression.get() : TileCacheCompressorFactory.get(cCompatibility);
+                this.compression = compression;
+                this.cCompatibility = cCompatibility;
+            }
+            return compressor;
+        }
+
+        /**
+         * The compressors read the whole array, so the buffer is only reused
+         * when the layer has the same size, which is the common case.
+         */
+        byte[] grid(int size) {
+            if (grid.length != size) {
+                grid = new byte[size];
+            }
+            return grid;
+        }
+    }
+
+    // Worker pools shared by the builders, one per number of threads. They are
+    // never shut down: a build may still use them, and their idle threads exit
+    // on their own.
+    private static final Map<Integer, ForkJoinPool> executors = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<LayerWorker> workers = ThreadLocal.withInitial(LayerWorker::new);
+
     private JmeInputGeomProvider m_geom;
     private RecastConfig cfg;
     private int tw;
     private int th;
+    // Statistics of each tile (ty * tw + tx), null until built.
+    private final TileLayerStats[] tileStats;
+    // Null for the compressor of TileCacheCompressorFactory.
+    private volatile Supplier<TileCacheCompressor> compression;
 
     public JmeTileLayerBuilder(JmeInputGeomProvider m_geom, RecastConfig cfg) {
-        this.m_geom = m_geom;
+        // Bucket the triangles once instead of scanning the chunks of the
+        // whole level for every tile.
+        if (m_geom instanceof GridInputGeomProvider && ((GridInputGeomProvider) m_geom).matches(cfg)) {
+            this.m_geom = m_geom;
+        } else {
+            this.m_geom = new GridInputGeomProvider(m_geom, cfg);
+        }
         this.cfg = cfg;
         float[] bmin = m_geom.getMeshBoundsMin();
         float[] bmax = m_geom.getMeshBoundsMax();
         int[] twh = Recast.calcTileCount(bmin, bmax, cfg.cs, cfg.tileSize);
         tw = twh[0];
         th = twh[1];
+        tileStats = new TileLayerStats[tw * th];
+    }
+
+    /**
+     * Sets the compressor of the layers, for example one of
+     * {@link TileCacheCompression}. The TileCache must use the same one. Each
+     * worker thread gets its own instance.
+     * 
+     * @param compression The compressor factory, or null for the compressor of
+     *                    TileCacheCompressorFactory.
+     */
+    public void setCompression(Supplier<TileCacheCompressor> compression) {
+        this.compression = compression;
+    }
+
+    public Supplier<TileCacheCompressor> getCompression() {
+        return compression;
     }
 
     public List<byte[]> build(ByteOrder order, boolean cCompatibility, int threads) {
-        return build(order, cCompatibility, threads, tw, th);
+        if (threads == 1) {
+            return build(order, cCompatibility, threads, tw, th);
+        }
+        return stream(order, cCompatibility, threads).collect(Collectors.toList());
+    }
+
+    /**
+     * Builds the layers of all the tiles with a pool of worker threads. The
+     * layers are returned in tile order (rows of ty, then tx, as in the single
+     * threaded build) and each tile is available as soon as it and the tiles
+     * before it are built.
+     * 
+     * @param order
+     * @param cCompatibility
+     * @param threads The number of worker threads.
+     * @return
+     */
+    public Stream<byte[]> stream(ByteOrder order, boolean cCompatibility, int threads) {
+        ForkJoinPool pool = getExecutor(threads);
+        List<CompletableFuture<List<byte[]>>> tiles = new ArrayList<>(tw * th);
+        for (int y = 0; y < th; ++y) {
+            for (int x = 0; x < tw; ++x) {
+                final int tx = x;
+                final int ty = y;
+                tiles.add(CompletableFuture.supplyAsync(() -> build(tx, ty, order, cCompatibility), pool));
+            }
+        }
+        return tiles.stream().flatMap(f -> f.join().stream());
+    }
+
+    private static ForkJoinPool getExecutor(int threads) {
+        return executors.computeIfAbsent(Math.max(1, threads), ForkJoinPool::new);
     }
 
     public int getTw() {
@@ -78,46 +237,133 @@ public class JmeTileLayerBuilder extends AbstractTileLayersBuilder {
 
     @Override
     public List<byte[]> build(int tx, int ty, ByteOrder order, boolean cCompatibility) {
-        HeightfieldLayerSet lset = getHeightfieldSet(tx, ty);
-
-        List<byte[]> result = new ArrayList<>();
-        if (lset != null) {
-            TileCacheBuilder builder = new TileCacheBuilder();
-            for (int i = 0; i < lset.layers.length; ++i) {
-                HeightfieldLayer layer = lset.layers[i];
-
-                // Store header
-                TileCacheLayerHeader header = new TileCacheLayerHeader();
-                header.magic = TileCacheLayerHeader.DT_TILECACHE_MAGIC;
-                header.version = TileCacheLayerHeader.DT_TILECACHE_VERSION;
-
-                // Tile layer location in the navmesh.
-                header.tx = tx;
-                header.ty = ty;
-                header.tlayer = i;
-                DetourCommon.vCopy(header.bmin, layer.bmin);
-                DetourCommon.vCopy(header.bmax, layer.bmax);
-
-                // Tile info.
-                header.width = layer.width;
-                header.height = layer.height;
-                header.minx = layer.minx;
-                header.maxx = layer.maxx;
-                header.miny = layer.miny;
-                header.maxy = layer.maxy;
-                header.hmin = layer.hmin;
-                header.hmax = layer.hmax;
-                result.add(builder.compressTileCacheLayer(header, layer.heights, layer.areas, layer.cons, order, cCompatibility));
-            }
+        long start = System.nanoTime();
+        LayerWorker worker = workers.get();
+        HeightfieldLayerSet lset = getHeightfieldSet(worker, tx, ty);
+
+        if (lset == null) {
+            tileStats[ty * tw + tx] = new TileLayerStats(tx, ty, 0, 0, 0, System.nanoTime() - start);
+            return Collections.emptyList();
         }
+
+        List<byte[]> result = new ArrayList<>(lset.layers.length);
+        int rawBytes = 0;
+        int compressedBytes = 0;
+        for (int i = 0; i < lset.layers.length; ++i) {
+            HeightfieldLayer layer = lset.layers[i];
+
+            // Store header
+            TileCacheLayerHeader header = new TileCacheLayerHeader();
+            header.magic = TileCacheLayerHeader.DT_TILECACHE_MAGIC;
+            header.version = TileCacheLayerHeader.DT_TILECACHE_VERSION;
+
+            // Tile layer location in the navmesh.
+            header.tx = tx;
+            header.ty = ty;
+            header.tlayer = i;
+            DetourCommon.vCopy(header.bmin, layer.bmin);
+            DetourCommon.vCopy(header.bmax, layer.bmax);
+
+            // Tile info.
+            header.width = layer.width;
+            header.height = layer.height;
+            header.minx = layer.minx;
+            header.maxx = layer.maxx;
+            header.miny = layer.miny;
+            header.maxy = layer.maxy;
+            header.hmin = layer.hmin;
+            header.hmax = layer.hmax;
+
+            byte[] data = compressTileCacheLayer(worker, header, layer, order, cCompatibility);
+            rawBytes += layer.width * layer.height * 3;
+            compressedBytes += data.length;
+            result.add(data);
+        }
+
+        tileStats[ty * tw + tx] = new TileLayerStats(tx, ty, result.size(), rawBytes, compressedBytes, System.nanoTime() - start);
         return result;
     }
 
+    /**
+     * Compresses a layer with TileCacheBuilder.compressTileCacheLayer. That
+     * method always uses the compressor of TileCacheCompressorFactory, so a
+     * layer with another compressor is written the same way, header then the
+     * heights, areas and cons grids, with the compressor and buffers of the
+     * worker.
+     */
+    private byte[] compressTileCacheLayer(LayerWorker worker, TileCacheLayerHeader header, HeightfieldLayer layer, 
+            ByteOrder order, boolean cCompatibility) {
+        Supplier<TileCacheCompressor> compression = this.compression;
+        if (compression == null) {
+            return worker.tcBuilder.compressTileCacheLayer(header, layer.heights, layer.areas, layer.cons, order, cCompatibility);
+        }
+        ByteArrayOutputStream baos = worker.baos;
+        baos.reset();
+        try {
+            worker.headerWriter.write(baos, header, order, cCompatibility);
+            int gridSize = header.width * header.height;
+            byte[] buffer = worker.grid(gridSize * 3);
+            for (int i = 0; i < gridSize; i++) {
+                buffer[i] = (byte) layer.heights[i];
+                buffer[gridSize + i] = (byte) layer.areas[i];
+                buffer[gridSize * 2 + i] = (byte) layer.cons[i];
+            }
+            baos.write(worker.compressor(compression, cCompatibility).compress(buffer));
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     protected HeightfieldLayerSet getHeightfieldSet(int tx, int ty) {
-        JmeRecastBuilder rcBuilder = new JmeRecastBuilder();
+        return getHeightfieldSet(workers.get(), tx, ty);
+    }
+
+    private HeightfieldLayerSet getHeightfieldSet(LayerWorker worker, int tx, int ty) {
         float[] bmin = m_geom.getMeshBoundsMin();
         float[] bmax = m_geom.getMeshBoundsMax();
         RecastBuilderConfig builderCfg = new RecastBuilderConfig(cfg, bmin, bmax, tx, ty, true);
-        return rcBuilder.buildLayers(m_geom, builderCfg);
+        return worker.rcBuilder.buildLayersTransient(m_geom, builderCfg);
+    }
+
+    /**
+     * @return The statistics of the tiles built so far, in tile order.
+     */
+    public List<TileLayerStats> getTileStats() {
+        List<TileLayerStats> list = new ArrayList<>();
+        for (TileLayerStats stats : tileStats) {
+            if (stats != null) {
+                list.add(stats);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Prints the totals and the slowest tile.
+     */
+    public void printStats() {
+        long rawBytes = 0;
+        long compressedBytes = 0;
+        long nanos = 0;
+        int layers = 0;
+        TileLayerStats slowest = null;
+        List<TileLayerStats> list = getTileStats();
+        for (TileLayerStats stats : list) {
+            rawBytes += stats.rawBytes;
+            compressedBytes += stats.compressedBytes;
+            nanos += stats.nanos;
+            layers += stats.layers;
+            if (slowest == null || stats.nanos > slowest.nanos) {
+                slowest = stats;
+            }
+        }
+        System.out.println(String.format("Tile cache layers: %d tiles, %d layers, %d -> %d bytes (%.2fx), %.2f ms per tile",
+                list.size(), layers, rawBytes, compressedBytes,
+                compressedBytes > 0 ? (float) rawBytes / compressedBytes : 0,
+                list.isEmpty() ? 0 : nanos / 1e6f / list.size()));
+        if (slowest != null) {
+            System.out.println("Slowest " + slowest);
+        }
     }
-}
\ No newline at end of file
+}
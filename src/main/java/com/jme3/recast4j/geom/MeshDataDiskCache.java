@@ -0,0 +1,311 @@
+package com.jme3.recast4j.geom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.recast4j.detour.MeshData;
+import org.recast4j.detour.io.MeshDataReader;
+import org.recast4j.detour.io.MeshDataWriter;
+import org.recast4j.recast.Context;
+import org.recast4j.recast.ConvexVolume;
+import org.recast4j.recast.RecastBuilderConfig;
+import org.recast4j.recast.RecastConfig;
+import org.recast4j.recast.geom.ChunkyTriMesh.ChunkyTriMeshNode;
+import org.recast4j.recast.geom.TriMesh;
+
+/**
+ * Content-addressed on-disk store for the MeshData of NavMesh tiles.
+ * <p>
+ * The key of a tile is a SHA-256 hash of everything the tile depends on: the
+ * coordinates and area id of the triangles overlapping the tile (including
+ * the border), the convex volumes, the off-mesh links and the RecastConfig
+ * fields. A tile whose inputs did not change since the previous build is read
+ * back from disk instead of being rebuilt.
+ * <p>
+ * Empty tiles are stored too, as a zero length file, so they are not rebuilt
+ * either. The entries are never overwritten, a change creates a new key; use
+ * {@link #retain(Set)} after a build to delete the entries no longer used.
+ * This class is thread-safe.
+ *
+ * @author capdevon
+ */
+public class MeshDataDiskCache {
+
+    // Bump when the key layout or the stored format changes.
+    private static final int VERSION = 2;
+    private static final String FILE_EXTENSION = ".tile";
+
+    private final Path directory;
+    private final int maxVertsPerPoly;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param directory       The folder where the tiles are stored.
+     * @param maxVertsPerPoly The maximum number of vertices per polygon of the tiles.
+     */
+    public MeshDataDiskCache(Path directory, int maxVertsPerPoly) {
+        this.directory = directory;
+        this.maxVertsPerPoly = maxVertsPerPoly;
+    }
+
+    /**
+     * Computes the key of a tile.
+     *
+     * @param geom  The input geometry.
+     * @param cfg   The configuration used to build the tile.
+     * @param bmin  The minimum bounds of the tiled grid.
+     * @param bmax  The maximum bounds of the tiled grid.
+     * @param tx    The x coordinate of the tile.
+     * @param ty    The y coordinate of the tile.
+     * @param extra Any other value used to create the MeshData (agent height,
+     *              radius, climb...).
+     * @return The hexadecimal key of the tile.
+     */
+    public String computeKey(JmeInputGeomProvider geom, RecastConfig cfg, float[] bmin, float[] bmax, int tx, int ty, float... extra) {
+        RecastBuilderConfig builderCfg = new RecastBuilderConfig(cfg, bmin, bmax, tx, ty, true);
+        KeyHasher hasher = new KeyHasher();
+
+        hasher.putInt(VERSION);
+        hasher.putInt(tx).putInt(ty);
+        hasher.putFloats(builderCfg.bmin, 0, 3).putFloats(builderCfg.bmax, 0, 3);
+        putConfig(hasher, cfg);
+        hasher.putFloats(extra, 0, extra.length);
+
+        // Triangles overlapping the tile.
+        if (geom instanceof GridInputGeomProvider) {
+            putGridTriangles(hasher, (GridInputGeomProvider) geom, builderCfg);
+        } else {
+            putTriangles(hasher, geom, cfg, builderCfg);
+        }
+
+        // Convex volumes and off-mesh links.
+        for (ConvexVolume vol : geom.convexVolumes()) {
+            hasher.putFloats(vol.verts, 0, vol.verts.length);
+            hasher.putFloat(vol.hmin).putFloat(vol.hmax);
+            hasher.putInt(vol.areaMod.getMaskedValue());
+        }
+        for (OffMeshLink link : geom.getOffMeshConnections()) {
+            hasher.putFloats(link.verts, 0, link.verts.length);
+            hasher.putFloat(link.radius);
+            hasher.putInt(link.biDirectional ? 1 : 0).putInt(link.area).putInt(link.flags).putInt(link.userID);
+        }
+
+        return hasher.digest();
+    }
+
+    /**
+     * Hashes the triangles of the grid cells overlapping the tile, without
+     * building the chunky BVH of the provider.
+     */
+    private void putGridTriangles(KeyHasher hasher, GridInputGeomProvider geom, RecastBuilderConfig builderCfg) {
+        TileScratch scratch = TileScratch.get();
+        int ntris = geom.getTrianglesOverlapping(builderCfg.bmin, builderCfg.bmax, scratch);
+        int[] tris = scratch.triangles(ntris);
+        float[] verts = geom.vertices;
+        int[] faces = geom.faces;
+        for (int i = 0; i < ntris; i++) {
+            int t = tris[i];
+            hasher.putFloats(verts, faces[t * 3] * 3, 3);
+            hasher.putFloats(verts, faces[t * 3 + 1] * 3, 3);
+            hasher.putFloats(verts, faces[t * 3 + 2] * 3, 3);
+            hasher.putInt(geom.triAreas[t]);
+        }
+    }
+
+    private void putTriangles(KeyHasher hasher, JmeInputGeomProvider geom, RecastConfig cfg, RecastBuilderConfig builderCfg) {
+        TriangleAreaTable areaTable = geom.getModifications().isEmpty()
+                ? null
+                : geom.getTriangleAreaTable(new Context(), cfg.walkableSlopeAngle);
+
+        float[] tbmin = { builderCfg.bmin[0], builderCfg.bmin[2] };
+        float[] tbmax = { builderCfg.bmax[0], builderCfg.bmax[2] };
+        for (TriMesh mesh : geom.meshes()) {
+            float[] verts = mesh.getVerts();
+            List<ChunkyTriMeshNode> nodes = mesh.getChunksOverlappingRect(tbmin, tbmax);
+            for (ChunkyTriMeshNode node : nodes) {
+                int[] tris = node.tris;
+                for (int i = 0; i < tris.length; i += 3) {
+                    hasher.putFloats(verts, tris[i] * 3, 3);
+                    hasher.putFloats(verts, tris[i + 1] * 3, 3);
+                    hasher.putFloats(verts, tris[i + 2] * 3, 3);
+                    if (areaTable != null) {
+                        int index = areaTable.indexOf(tris[i], tris[i + 1], tris[i + 2]);
+                        hasher.putInt(index >= 0 ? areaTable.areas[index] : 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private void putConfig(KeyHasher hasher, RecastConfig cfg) {
+        hasher.putInt(cfg.partitionType.ordinal());
+        hasher.putFloat(cfg.cs).putFloat(cfg.ch);
+        hasher.putFloat(cfg.walkableSlopeAngle);
+        hasher.putInt(cfg.walkableHeight).putInt(cfg.walkableClimb).putInt(cfg.walkableRadius);
+        hasher.putInt(cfg.maxEdgeLen).putFloat(cfg.maxSimplificationError);
+        hasher.putInt(cfg.minRegionArea).putInt(cfg.mergeRegionArea);
+        hasher.putInt(cfg.maxVertsPerPoly);
+        hasher.putFloat(cfg.detailSampleDist).putFloat(cfg.detailSampleMaxError);
+        hasher.putInt(cfg.tileSize).putInt(cfg.borderSize);
+        hasher.putInt(cfg.walkableAreaMod.getMaskedValue());
+        hasher.putInt(cfg.filterLowHangingObstacles ? 1 : 0);
+        hasher.putInt(cfg.filterLedgeSpans ? 1 : 0);
+        hasher.putInt(cfg.filterWalkableLowHeightSpans ? 1 : 0);
+    }
+
+    /**
+     * @param key The key of the tile.
+     * @return True if a tile is stored under this key.
+     */
+    public boolean contains(String key) {
+        return Files.exists(getFile(key));
+    }
+
+    /**
+     * Reads the tile stored under the key. Only a successful read counts as a
+     * hit.
+     *
+     * @param key The key of the tile.
+     * @return The MeshData or null if the stored tile is empty.
+     * @throws IOException
+     */
+    public MeshData load(String key) throws IOException {
+        Path file = getFile(key);
+        MeshData md = null;
+        if (Files.size(file) > 0) {
+            try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+                MeshDataReader reader = new MeshDataReader();
+                md = reader.read(is, maxVertsPerPoly);
+            }
+        }
+        hits.incrementAndGet();
+        return md;
+    }
+
+    /**
+     * Stores the tile under the key. Every stored tile counts as a miss.
+     *
+     * @param key The key of the tile.
+     * @param md  The MeshData or null if the tile is empty.
+     * @throws IOException
+     */
+    public void store(String key, MeshData md) throws IOException {
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            if (md != null) {
+                MeshDataWriter writer = new MeshDataWriter();
+                writer.write(os, md, ByteOrder.BIG_ENDIAN, false);
+            }
+        }
+        Files.move(tmp, getFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Deletes the stored tiles whose key is not in the supplied set, and the
+     * temporary files left by interrupted builds. Call it after a full build
+     * with the keys of all its tiles so the folder only holds the tiles of
+     * the current geometry and settings.
+     *
+     * @param keys The keys to keep.
+     * @return The number of deleted files.
+     * @throws IOException
+     */
+    public int retain(Set<String> keys) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean stale = name.endsWith(".tmp") || (name.endsWith(FILE_EXTENSION)
+                        && !keys.contains(name.substring(0, name.length() - FILE_EXTENSION.length())));
+                if (stale && Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(key + FILE_EXTENSION);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Feeds primitive values to a SHA-256 digest through a staging buffer.
+     */
+    private static class KeyHasher {
+
+        private final MessageDigest digest;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        KeyHasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        KeyHasher putInt(int value) {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(value);
+            return this;
+        }
+
+        KeyHasher putFloat(float value) {
+            return putInt(Float.floatToIntBits(value));
+        }
+
+        KeyHasher putFloats(float[] values, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                putInt(Float.floatToIntBits(values[i]));
+            }
+            return this;
+        }
+
+        private void flush() {
+            digest.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        String digest() {
+            flush();
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+    }
+
+}
@@ -13,10 +13,14 @@ import com.jme3.scene.Geometry;
  */
 public class NavMeshBuildSource {
 
-    // Geometry input sources.
+    // Geometry input sources, null if the source was loaded from a snapshot.
     public final Geometry sourceObj;
     // Describes the area type of the NavMesh surface for this object.
     public final AreaModification area;
+    // First index of the source triangles in the provider face array, -1 if unknown.
+    private int geomOffset = -1;
+    // Number of triangle indices of the source in the provider, -1 if unknown.
+    private int geomLength = -1;
 
     /**
      * 
@@ -28,11 +32,41 @@ public class NavMeshBuildSource {
         this.area = area;
     }
 
+    /**
+     * Creates a source without Geometry, from a triangle range of the provider.
+     * 
+     * @param area       AreaModification to set.
+     * @param geomOffset First index of the source triangles in the provider faces.
+     * @param geomLength Number of triangle indices of the source.
+     */
+    public NavMeshBuildSource(AreaModification area, int geomOffset, int geomLength) {
+        this.sourceObj = null;
+        this.area = area;
+        this.geomOffset = geomOffset;
+        this.geomLength = geomLength;
+    }
+
+    /**
+     * Records where the triangles of this source were copied in the provider.
+     * Set by JmeGeomProviderBuilder while extracting the geometries.
+     */
+    void setGeomRange(int geomOffset, int geomLength) {
+        this.geomOffset = geomOffset;
+        this.geomLength = geomLength;
+    }
+
+    /**
+     * @return the geomOffset, -1 if the range was not recorded
+     */
+    public int getGeomOffset() {
+        return geomOffset;
+    }
+
     /**
      * @return the geomLength
      */
     public int getGeomLength() {
-        return sourceObj.getMesh().getTriangleCount() * 3;
+        return geomLength >= 0 ? geomLength : sourceObj.getMesh().getTriangleCount() * 3;
     }
 
     /**
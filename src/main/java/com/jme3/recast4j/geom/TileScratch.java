@@ -0,0 +1,88 @@
+package com.jme3.recast4j.geom;
+
+import java.util.Arrays;
+
+import org.recast4j.recast.Heightfield;
+import org.recast4j.recast.RecastBuilderConfig;
+import org.recast4j.recast.RecastVectors;
+
+/**
+ * Per-worker scratch buffers reused between the tiles of a build.
+ * <p>
+ * All the tiles of a tiled build have the same heightfield size, so a worker
+ * keeps one Heightfield and clears it instead of allocating a new span grid
+ * for every tile, along with the triangle and area buffers used by the
+ * rasterization. Only the buffers owned by this library can be reused: the
+ * spans, compact heightfield, regions, contours and meshes are allocated
+ * inside Recast.
+ * <p>
+ * An instance belongs to one thread, see {@link #get()}. Anything taken from it
+ * is only valid until the next tile built by the same thread.
+ *
+ * @author capdevon
+ */
+class TileScratch {
+
+    private static final ThreadLocal<TileScratch> SCRATCH = ThreadLocal.withInitial(TileScratch::new);
+
+    private Heightfield heightfield;
+    private int[] tris = new int[0];
+    private int[] areas = new int[0];
+    private int[] triangles = new int[0];
+
+    /**
+     * @return The scratch buffers of the calling thread.
+     */
+    static TileScratch get() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Returns an empty heightfield covering the tile. The heightfield of the
+     * previous tile is cleared and reused when the size matches.
+     */
+    Heightfield heightfield(RecastBuilderConfig builderCfg) {
+        Heightfield hf = heightfield;
+        if (hf == null || hf.width != builderCfg.width || hf.height != builderCfg.height
+                || hf.cs != builderCfg.cfg.cs || hf.ch != builderCfg.cfg.ch) {
+            hf = new Heightfield(builderCfg.width, builderCfg.height, new float[3], new float[3], builderCfg.cfg.cs, builderCfg.cfg.ch);
+            heightfield = hf;
+        } else {
+            Arrays.fill(hf.spans, null);
+        }
+        RecastVectors.copy(hf.bmin, builderCfg.bmin);
+        RecastVectors.copy(hf.bmax, builderCfg.bmax);
+        return hf;
+    }
+
+    /**
+     * @return A buffer holding at least ntris * 3 triangle indices.
+     */
+    int[] tris(int ntris) {
+        if (tris.length < ntris * 3) {
+            tris = new int[ntris * 3];
+        }
+        return tris;
+    }
+
+    /**
+     * @return A buffer holding at least ntris area ids.
+     */
+    int[] areas(int ntris) {
+        if (areas.length < ntris) {
+            areas = new int[ntris];
+        }
+        return areas;
+    }
+
+    /**
+     * @return A buffer holding at least count triangle numbers.
+     */
+    int[] triangles(int count) {
+        if (triangles.length < count) {
+            triangles = new int[count];
+        }
+        return triangles;
+    }
+
+}
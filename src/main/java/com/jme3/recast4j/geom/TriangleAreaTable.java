@@ -0,0 +1,131 @@
+package com.jme3.recast4j.geom;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.recast4j.recast.Context;
+import org.recast4j.recast.Recast;
+import org.recast4j.recast.RecastConstants;
+
+/**
+ * Precomputed area type of every triangle of a JmeInputGeomProvider.
+ *
+ * The area ids are marked once, one batched markWalkableTriangles call per
+ * NavMeshBuildSource, using the triangle ranges recorded by the sources. A hash index
+ * keyed by the three vertex indices of a triangle maps the triangles found in
+ * the ChunkyTriMesh nodes back to their area id in O(1), so the tiled
+ * rasterization no longer has to search every source for each triangle.
+ *
+ * See {@link JmeInputGeomProvider#getTriangleAreaTable(Context, float)}.
+ *
+ * @author capdevon
+ */
+class TriangleAreaTable {
+
+    private static final int EMPTY = -1;
+
+    // The slope used to mark the walkable triangles.
+    final float walkableSlopeAngle;
+    // The number of NavMeshBuildSource used to build this table.
+    final int sourceCount;
+    // Area id of each triangle, indexed by triangle.
+    final int[] areas;
+
+    private final int[] tris;
+    // Open addressing hash table holding triangle indices.
+    private final int[] slots;
+    private final int mask;
+
+    /**
+     *
+     * @param ctx
+     * @param walkableSlopeAngle
+     * @param verts
+     * @param tris
+     * @param sources
+     */
+    TriangleAreaTable(Context ctx, float walkableSlopeAngle, float[] verts, int[] tris, List<NavMeshBuildSource> sources) {
+        this.walkableSlopeAngle = walkableSlopeAngle;
+        this.sourceCount = sources.size();
+        this.tris = tris;
+
+        int ntris = tris.length / 3;
+        areas = new int[ntris];
+
+        // Mark each source range with its AreaModification in one pass.
+        int fromIndex = 0;
+        for (NavMeshBuildSource sourceObj : sources) {
+            int start = sourceObj.getGeomOffset() >= 0 ? sourceObj.getGeomOffset() : fromIndex;
+            int end = Math.min(start + sourceObj.getGeomLength(), tris.length);
+            if (end > start) {
+                int[] triangles = Arrays.copyOfRange(tris, start, end);
+                int[] m_triareas = Recast.markWalkableTriangles(ctx, walkableSlopeAngle, verts, triangles,
+                        triangles.length / 3, sourceObj.getAreaModification());
+                System.arraycopy(m_triareas, 0, areas, start / 3, m_triareas.length);
+            }
+            fromIndex = start + sourceObj.getGeomLength();
+        }
+
+        // Index every triangle by its vertex indices. Duplicated triangles keep
+        // the area of the first source they belong to.
+        int capacity = Integer.highestOneBit(Math.max(ntris, 1) * 2 - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(slots, EMPTY);
+
+        for (int i = 0; i < ntris; i++) {
+            int a = tris[i * 3];
+            int b = tris[i * 3 + 1];
+            int c = tris[i * 3 + 2];
+            int slot = hash(a, b, c) & mask;
+            while (slots[slot] != EMPTY && !matches(slots[slot], a, b, c)) {
+                slot = (slot + 1) & mask;
+            }
+            if (slots[slot] == EMPTY) {
+                slots[slot] = i;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the triangle made of the vertices a, b, c or -1 if
+     * the triangle does not belong to the mesh.
+     */
+    int indexOf(int a, int b, int c) {
+        int slot = hash(a, b, c) & mask;
+        while (slots[slot] != EMPTY) {
+            if (matches(slots[slot], a, b, c)) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Writes the area id of each triangle of the supplied triangle array into
+     * the areas array. Unknown triangles are marked as RC_NULL_AREA.
+     *
+     * @param nodeTris The triangles to mark.
+     * @param ntris    The number of triangles.
+     * @param out      Holds the resulting area ids.
+     * @return The out array.
+     */
+    int[] markTriangles(int[] nodeTris, int ntris, int[] out) {
+        for (int i = 0; i < ntris; i++) {
+            int index = indexOf(nodeTris[i * 3], nodeTris[i * 3 + 1], nodeTris[i * 3 + 2]);
+            out[i] = index != EMPTY ? areas[index] : RecastConstants.RC_NULL_AREA;
+        }
+        return out;
+    }
+
+    private boolean matches(int index, int a, int b, int c) {
+        return tris[index * 3] == a && tris[index * 3 + 1] == b && tris[index * 3 + 2] == c;
+    }
+
+    private static int hash(int a, int b, int c) {
+        int h = a * 0x9E3779B1 ^ b * 0x85EBCA77 ^ c * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+
+}